@@ -0,0 +1,349 @@
+// Copyright (c) 2025 Synadia Communications Inc. All Rights Reserved.
+// See LICENSE and NOTICE file for details.
+
+package io.synadia.tuning.backpressure;
+
+import io.nats.client.Connection;
+import io.nats.client.Nats;
+import io.nats.client.Options;
+import io.synadia.utils.AimdPublisher;
+import io.synadia.utils.LatencyHistogram;
+import io.synadia.utils.ResultStore;
+import io.synadia.utils.StallDetector;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static io.synadia.utils.ArgumentUtils.*;
+import static io.synadia.utils.Debug.log;
+
+/*
+    Measures the throughput against loss trade-off of publishing with and without AIMD backpressure,
+    the same threads and offered load against the same outgoing queue limit. Every thread offers one message
+    every 1 / offered.rate seconds on a fixed schedule, so each mode is offered the same messages at the same times.
+      Raw   - publish straight to the connection, a publish that finds the queue full throws and the message is lost
+      Aimd  - publish through AimdPublisher, waiting for a permit, so the thread falls behind the schedule instead,
+              and whatever it still hasn't published a whole duration after the schedule ended is lost
+      Shed  - publish through AimdPublisher with tryPublish, a message without a permit is dropped up front
+    Latency is from when the schedule offered the message to when the publish returned, so falling behind counts.
+    For each mode it prints messages per second, messages lost and the loss percentage, the most messages seen pending,
+    and the latency tail, and keeps each as a result.
+ */
+public class MainBackpressure {
+    private static final String LABEL = "BP";
+    private static final String[] KEYS_SERVERS = new String[]{"servers", "s"};
+    private static final String[] KEYS_MODES = new String[]{"modes", "m"};
+    private static final String[] KEYS_THREADS = new String[]{"threads", "t"};
+    private static final String[] KEYS_OFFERED_RATE = new String[]{"offered.rate", "or"};
+    private static final String[] KEYS_PAYLOAD_SIZE = new String[]{"payload.size", "p"};
+    private static final String[] KEYS_DURATION_SECONDS = new String[]{"duration.seconds", "d"};
+    private static final String[] KEYS_MAX_OUTGOING_QUEUE = new String[]{"max.outgoing.queue", "mq"};
+    private static final String[] KEYS_TARGET_OCCUPANCY = new String[]{"target.occupancy", "to"};
+    private static final String[] KEYS_TARGET_LATENCY_MILLIS = new String[]{"target.latency.millis", "tl"};
+    private static final String[] KEYS_INITIAL_RATE = new String[]{"initial.rate", "ir"};
+    private static final String[] KEYS_MIN_RATE = new String[]{"min.rate", "mnr"};
+    private static final String[] KEYS_MAX_RATE = new String[]{"max.rate", "mxr"};
+    private static final String[] KEYS_INCREASE = new String[]{"increase", "inc"};
+    private static final String[] KEYS_DECREASE = new String[]{"decrease", "dec"};
+    private static final String[] KEYS_ADJUST_MILLIS = new String[]{"adjust.millis", "am"};
+    private static final String[] KEYS_SUBJECT = new String[]{"subject", "sj"};
+    private static final String[] KEYS_RESULT_STORE = new String[]{"result.store", "rs"};
+
+    enum Mode {
+        Raw,
+        Aimd,
+        Shed;
+
+        public static Mode parse(String s) {
+            for (Mode m : values()) {
+                if (m.name().equalsIgnoreCase(s)) {
+                    return m;
+                }
+            }
+            throw new IllegalArgumentException("Unknown mode: " + s);
+        }
+    }
+
+    static class Result {
+        final Mode mode;
+        final long published;
+        final long lost;
+        final long maxPending;
+        final double seconds;
+        final LatencyHistogram latency;
+        final long finalRate;
+
+        Result(Mode mode, long published, long lost, long maxPending, double seconds, LatencyHistogram latency, long finalRate) {
+            this.mode = mode;
+            this.published = published;
+            this.lost = lost;
+            this.maxPending = maxPending;
+            this.seconds = seconds;
+            this.latency = latency;
+            this.finalRate = finalRate;
+        }
+
+        double messagesPerSecond() {
+            return seconds == 0 ? 0 : published / seconds;
+        }
+
+        double lossPercent() {
+            long attempted = published + lost;
+            return attempted == 0 ? 0 : lost * 100.0 / attempted;
+        }
+    }
+
+    final String[] servers;
+    final Mode[] modes;
+    final int threads;
+    final long offeredRate;
+    final int payloadSize;
+    final long durationSeconds;
+    final int maxOutgoingQueue;
+    final double targetOccupancy;
+    final long targetLatencyMillis;
+    final double initialRate;
+    final double minRate;
+    final double maxRate;
+    final double increase;
+    final double decrease;
+    final long adjustMillis;
+    final String subject;
+    final String resultStore;
+
+    public static void main(String[] args) throws Exception {
+        new MainBackpressure(args).run();
+    }
+
+    public MainBackpressure(String[] args) {
+        //noinspection DataFlowIssue
+        servers = getArg(args, "nats://localhost:4222", KEYS_SERVERS).split(",");
+        //noinspection DataFlowIssue
+        String[] split = getArg(args, "Raw,Aimd,Shed", KEYS_MODES).split(",");
+        modes = new Mode[split.length];
+        for (int ix = 0; ix < split.length; ix++) {
+            modes[ix] = Mode.parse(split[ix].trim());
+        }
+        threads = getIntArg(args, 4, KEYS_THREADS);
+        offeredRate = getLongArg(args, 2_500, KEYS_OFFERED_RATE);
+        payloadSize = getIntArg(args, 128, KEYS_PAYLOAD_SIZE);
+        durationSeconds = getLongArg(args, 10, KEYS_DURATION_SECONDS);
+        maxOutgoingQueue = getIntArg(args, 5000, KEYS_MAX_OUTGOING_QUEUE);
+        targetOccupancy = getDouble(args, 0.5, KEYS_TARGET_OCCUPANCY);
+        targetLatencyMillis = getLongArg(args, 0, KEYS_TARGET_LATENCY_MILLIS);
+        initialRate = getDouble(args, 10_000, KEYS_INITIAL_RATE);
+        minRate = getDouble(args, 100, KEYS_MIN_RATE);
+        maxRate = getDouble(args, 10_000_000, KEYS_MAX_RATE);
+        increase = getDouble(args, 1_000, KEYS_INCREASE);
+        decrease = getDouble(args, AimdPublisher.DEFAULT_DECREASE, KEYS_DECREASE);
+        adjustMillis = getLongArg(args, AimdPublisher.DEFAULT_ADJUST_MILLIS, KEYS_ADJUST_MILLIS);
+        subject = getArg(args, "bp", KEYS_SUBJECT);
+        String _resultStore = getArg(args, ResultStore.DEFAULT_FILE, KEYS_RESULT_STORE);
+        resultStore = "none".equalsIgnoreCase(_resultStore) ? null : _resultStore;
+
+        if (targetOccupancy <= 0 || targetOccupancy > 1) {
+            throw new IllegalArgumentException("Target occupancy must be more than 0 and at most 1");
+        }
+        if (offeredRate < 1) {
+            // flat out, a shedding thread would count its own spinning as loss, and waiting threads offer less
+            throw new IllegalArgumentException("Offered rate must be at least 1 message per second per thread");
+        }
+        if (durationSeconds < 1) {
+            throw new IllegalArgumentException("Duration seconds must be at least 1");
+        }
+
+        log(LABEL, "----- Backpressure Options -----");
+        log(LABEL, "Servers", servers);
+        log(LABEL, "Modes", String.join(",", split));
+        log(LABEL, "Threads", threads);
+        log(LABEL, "Offered Rate Per Thread", offeredRate);
+        log(LABEL, "Payload Size", payloadSize);
+        log(LABEL, "Duration Seconds", durationSeconds);
+        log(LABEL, "Max Outgoing Queue", maxOutgoingQueue);
+        log(LABEL, "Target Occupancy", targetOccupancy);
+        log(LABEL, "Target Latency Millis", targetLatencyMillis == 0 ? "Not Used" : targetLatencyMillis);
+        log(LABEL, "Initial / Min / Max Rate", (long)initialRate + " / " + (long)minRate + " / " + (long)maxRate);
+        log(LABEL, "Increase / Decrease", increase + " / " + decrease);
+        log(LABEL, "Adjust Millis", adjustMillis);
+        log(LABEL, "Result Store", resultStore == null ? "None" : resultStore);
+    }
+
+    private static double getDouble(String[] args, double dflt, String... keys) {
+        return Double.parseDouble(getArg(args, dflt, keys));
+    }
+
+    public void run() throws Exception {
+        List<Result> results = new ArrayList<>();
+        for (Mode mode : modes) {
+            results.add(runOne(mode));
+        }
+        report(results);
+        if (resultStore != null) {
+            ResultStore store = new ResultStore(resultStore);
+            for (Result r : results) {
+                store.appendQuietly(toRecord(r));
+            }
+        }
+    }
+
+    private Result runOne(Mode mode) throws Exception {
+        log(LABEL, "Running %s", mode);
+        StallDetector detector = targetLatencyMillis > 0 && mode != Mode.Raw
+            ? new StallDetector(LABEL, targetLatencyMillis, -1, 250, 30_000, 0, StallDetector.DEFAULT_ALPHA, StallDetector.log())
+            : null;
+        Options.Builder builder = new Options.Builder()
+            .servers(servers)
+            .ignoreDiscoveredServers()
+            .maxMessagesInOutgoingQueue(maxOutgoingQueue);
+        if (detector != null) {
+            builder.statisticsCollector(detector).connectionListener(detector);
+        }
+
+        byte[] payload = new byte[payloadSize];
+        LatencyHistogram[] histograms = new LatencyHistogram[threads];
+        AtomicLong lost = new AtomicLong();
+        AtomicLong published = new AtomicLong();
+        try (Connection conn = Nats.connect(builder.build())) {
+            if (detector != null) {
+                detector.setConnection(conn);
+            }
+            long targetPending = Math.max(1, (long)(maxOutgoingQueue * targetOccupancy));
+            AimdPublisher aimd = mode == Mode.Raw ? null
+                : new AimdPublisher(conn, targetPending, 0, targetLatencyMillis,
+                    detector == null ? null : detector::getEwmaNanos,
+                    initialRate, minRate, maxRate, increase, decrease, adjustMillis);
+
+            AtomicLong maxPending = new AtomicLong();
+            Thread sampler = new Thread(() -> {
+                while (!Thread.currentThread().isInterrupted()) {
+                    maxPending.accumulateAndGet(conn.outgoingPendingMessageCount(), Math::max);
+                    LockSupport.parkNanos(1_000_000);
+                }
+            }, LABEL + "-sampler");
+            sampler.setDaemon(true);
+            sampler.start();
+
+            CountDownLatch go = new CountDownLatch(1);
+            Thread[] list = new Thread[threads];
+            for (int tx = 0; tx < threads; tx++) {
+                LatencyHistogram h = new LatencyHistogram();
+                histograms[tx] = h;
+                list[tx] = new Thread(() -> {
+                    try {
+                        go.await();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    long offeredNanos = Math.max(1, 1_000_000_000L / offeredRate);
+                    long durationNanos = durationSeconds * 1_000_000_000L;
+                    long next = System.nanoTime();
+                    long stop = next + durationNanos;
+                    long deadline = stop + durationNanos;
+                    long count = 0;
+                    while (next < stop) {
+                        long wait;
+                        while ((wait = next - System.nanoTime()) > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+                        if (System.nanoTime() > deadline) {
+                            // too far behind to ever catch up, what is left of the schedule is lost
+                            lost.addAndGet((stop - next + offeredNanos - 1) / offeredNanos);
+                            break;
+                        }
+                        try {
+                            if (aimd == null) {
+                                conn.publish(subject, payload);
+                                count++;
+                            }
+                            else if (mode == Mode.Aimd) {
+                                aimd.publish(subject, payload);
+                                count++;
+                            }
+                            else if (aimd.tryPublish(subject, payload)) {
+                                count++;
+                            }
+                            else {
+                                lost.incrementAndGet();
+                            }
+                        }
+                        catch (IllegalStateException e) {
+                            lost.incrementAndGet(); // the outgoing queue is full
+                        }
+                        h.record(System.nanoTime() - next);
+                        next += offeredNanos;
+                    }
+                    published.addAndGet(count);
+                }, LABEL + "-" + tx);
+                list[tx].start();
+            }
+
+            long startNanos = System.nanoTime();
+            go.countDown();
+            for (Thread t : list) {
+                t.join();
+            }
+            conn.flush(Duration.ofSeconds(30));
+            double seconds = (System.nanoTime() - startNanos) / 1_000_000_000.0;
+            sampler.interrupt();
+
+            long finalRate = -1;
+            if (aimd != null) {
+                aimd.close();
+                aimd.report();
+                finalRate = (long)aimd.getRate();
+            }
+            if (detector != null) {
+                detector.report();
+            }
+
+            LatencyHistogram latency = new LatencyHistogram();
+            for (LatencyHistogram h : histograms) {
+                latency.add(h);
+            }
+            return new Result(mode, published.get(), lost.get(), maxPending.get(), seconds, latency, finalRate);
+        }
+    }
+
+    private void report(List<Result> results) {
+        System.out.println("\nBACKPRESSURE");
+        System.out.println(String.format("%6s %14s %12s %8s %12s %12s %12s %12s %12s",
+            "mode", "msgs/sec", "lost", "loss %", "max pending", "final rate", "p50", "p99", "max"));
+        for (Result r : results) {
+            System.out.println(String.format("%6s %14s %12s %8.3f %12s %12s %12s %12s %12s",
+                r.mode, format((long)r.messagesPerSecond()), format(r.lost), r.lossPercent(), format(r.maxPending),
+                r.finalRate < 0 ? "-" : format(r.finalRate),
+                LatencyHistogram.millis(r.latency.getValueAtPercentile(50)),
+                LatencyHistogram.millis(r.latency.getValueAtPercentile(99)),
+                LatencyHistogram.millis(r.latency.getMax())));
+        }
+    }
+
+    private ResultStore.Record toRecord(Result r) {
+        return new ResultStore.Record("backpressure")
+            .param("mode", r.mode)
+            .param("threads", threads)
+            .param("offered.rate", offeredRate)
+            .param("payload.size", payloadSize)
+            .param("duration.seconds", durationSeconds)
+            .param("max.outgoing.queue", maxOutgoingQueue)
+            .param("target.occupancy", targetOccupancy)
+            .param("target.latency.millis", targetLatencyMillis)
+            .param("increase", increase)
+            .param("decrease", decrease)
+            .param("adjust.millis", adjustMillis)
+            .metric("published", r.published)
+            .metric("lost", r.lost)
+            .metric("loss percent", r.lossPercent())
+            .metric("messages per second", r.messagesPerSecond())
+            .metric("max pending messages", r.maxPending)
+            .metric("final rate", r.finalRate)
+            .metric("publish p50 ms", r.latency.getValueAtPercentile(50) / 1_000_000.0)
+            .metric("publish p99 ms", r.latency.getValueAtPercentile(99) / 1_000_000.0)
+            .metric("publish max ms", r.latency.getMax() / 1_000_000.0);
+    }
+}
@@ -0,0 +1,196 @@
+// Copyright (c) 2025 Synadia Communications Inc. All Rights Reserved.
+// See LICENSE and NOTICE file for details.
+
+package io.synadia.tuning.cml;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static io.synadia.utils.Debug.simpleTime;
+
+/*
+    A fixed size ring of time buckets of what the client buffered and wrote to the socket.
+    Each bucket holds the buffered and written messages and bytes in the bucket, and the messages and bytes
+    buffered but not yet written at the end of the bucket. When the connection is lost, what was still outstanding
+    is kept as the bucket's abandoned messages and bytes, what the socket died holding. Once the ring is full the oldest bucket is reused,
+    so the ring always holds the last (buckets * bucket millis) of the run, the moments before the socket died.
+    Recording does not allocate, and only takes a lock once per bucket, to clear the slot for the new bucket.
+ */
+public class BufferTimeline {
+    public static final long MIN_BUCKET_MILLIS = 10;
+    public static final long MAX_BUCKET_MILLIS = 100;
+
+    private static final int BUFFERED_MESSAGES = 0;
+    private static final int BUFFERED_BYTES = 1;
+    private static final int WRITTEN_MESSAGES = 2;
+    private static final int WRITTEN_BYTES = 3;
+    private static final int OUTSTANDING_MESSAGES = 4;
+    private static final int OUTSTANDING_BYTES = 5;
+    private static final int ABANDONED_MESSAGES = 6;
+    private static final int ABANDONED_BYTES = 7;
+    private static final int FIELDS = 8;
+
+    private final long bucketNanos;
+    private final long bucketMillis;
+    private final int capacity;
+    private final long startNanos;
+    private final long startMillis;
+    private final AtomicLongArray buckets; // the bucket number each slot holds, -1 for never used
+    private final AtomicLongArray values;
+    private final AtomicLong outstandingMessages;
+    private final AtomicLong outstandingBytes;
+
+    public BufferTimeline(long bucketMillis, int capacity) {
+        if (bucketMillis < MIN_BUCKET_MILLIS || bucketMillis > MAX_BUCKET_MILLIS) {
+            throw new IllegalArgumentException("Bucket millis must be from " + MIN_BUCKET_MILLIS + " to " + MAX_BUCKET_MILLIS);
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        this.bucketMillis = bucketMillis;
+        this.bucketNanos = bucketMillis * 1_000_000;
+        this.capacity = capacity;
+        buckets = new AtomicLongArray(capacity);
+        for (int ix = 0; ix < capacity; ix++) {
+            buckets.set(ix, -1);
+        }
+        values = new AtomicLongArray(capacity * FIELDS);
+        outstandingMessages = new AtomicLong();
+        outstandingBytes = new AtomicLong();
+        startMillis = System.currentTimeMillis();
+        startNanos = System.nanoTime();
+    }
+
+    public long getBucketMillis() {
+        return bucketMillis;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void buffered(long bytes) {
+        int base = slot();
+        if (base < 0) {
+            return;
+        }
+        values.incrementAndGet(base + BUFFERED_MESSAGES);
+        values.addAndGet(base + BUFFERED_BYTES, bytes);
+        values.set(base + OUTSTANDING_MESSAGES, outstandingMessages.incrementAndGet());
+        values.set(base + OUTSTANDING_BYTES, outstandingBytes.addAndGet(bytes));
+    }
+
+    /**
+     * Everything buffered so far has been written
+     */
+    public void written() {
+        int base = slot();
+        if (base < 0) {
+            return;
+        }
+        values.addAndGet(base + WRITTEN_MESSAGES, outstandingMessages.getAndSet(0));
+        values.addAndGet(base + WRITTEN_BYTES, outstandingBytes.getAndSet(0));
+        values.set(base + OUTSTANDING_MESSAGES, 0);
+        values.set(base + OUTSTANDING_BYTES, 0);
+    }
+
+    /**
+     * What is outstanding will never be written, for instance when the connection is lost.
+     * It is counted as abandoned in the current bucket instead of as written.
+     */
+    public void abandon() {
+        int base = slot();
+        if (base < 0) {
+            return;
+        }
+        values.addAndGet(base + ABANDONED_MESSAGES, outstandingMessages.getAndSet(0));
+        values.addAndGet(base + ABANDONED_BYTES, outstandingBytes.getAndSet(0));
+        values.set(base + OUTSTANDING_MESSAGES, 0);
+        values.set(base + OUTSTANDING_BYTES, 0);
+    }
+
+    private int slot() {
+        long bucket = (System.nanoTime() - startNanos) / bucketNanos;
+        int slot = (int)(bucket % capacity);
+        long held = buckets.get(slot);
+        if (held != bucket) {
+            if (held > bucket) {
+                return -1; // so late the slot has already been reused
+            }
+            roll(slot, bucket);
+        }
+        return slot * FIELDS;
+    }
+
+    private synchronized void roll(int slot, long bucket) {
+        if (buckets.get(slot) < bucket) {
+            int base = slot * FIELDS;
+            for (int f = 0; f < FIELDS; f++) {
+                values.set(base + f, 0);
+            }
+            // a new bucket starts with whatever is still outstanding
+            values.set(base + OUTSTANDING_MESSAGES, outstandingMessages.get());
+            values.set(base + OUTSTANDING_BYTES, outstandingBytes.get());
+            buckets.set(slot, bucket);
+        }
+    }
+
+    /**
+     * Write the ring oldest bucket first. Buckets with no activity are written
+     * as empty, carrying what was outstanding at the end of the previous bucket.
+     */
+    public void writeCsv(PrintStream ps) {
+        long newest = -1;
+        for (int ix = 0; ix < capacity; ix++) {
+            newest = Math.max(newest, buckets.get(ix));
+        }
+        ps.println("time,offset millis,buffered messages,buffered bytes,written messages,written bytes,outstanding messages,outstanding bytes,abandoned messages,abandoned bytes");
+        if (newest == -1) {
+            return;
+        }
+        long oldest = Math.max(0, newest - capacity + 1);
+        long carryMessages = 0;
+        long carryBytes = 0;
+        long abandonedMessages;
+        long abandonedBytes;
+        for (long bucket = oldest; bucket <= newest; bucket++) {
+            int slot = (int)(bucket % capacity);
+            int base = slot * FIELDS;
+            long offset = bucket * bucketMillis;
+            ps.print(simpleTime(startMillis + offset));
+            ps.print(",");
+            ps.print(offset);
+            if (buckets.get(slot) == bucket) {
+                carryMessages = values.get(base + OUTSTANDING_MESSAGES);
+                carryBytes = values.get(base + OUTSTANDING_BYTES);
+                abandonedMessages = values.get(base + ABANDONED_MESSAGES);
+                abandonedBytes = values.get(base + ABANDONED_BYTES);
+                for (int f = BUFFERED_MESSAGES; f <= WRITTEN_BYTES; f++) {
+                    ps.print(",");
+                    ps.print(values.get(base + f));
+                }
+            }
+            else {
+                ps.print(",0,0,0,0");
+                abandonedMessages = 0;
+                abandonedBytes = 0;
+            }
+            ps.print(",");
+            ps.print(carryMessages);
+            ps.print(",");
+            ps.print(carryBytes);
+            ps.print(",");
+            ps.print(abandonedMessages);
+            ps.print(",");
+            ps.println(abandonedBytes);
+        }
+    }
+
+    public void writeCsv(String fn) throws IOException {
+        try (PrintStream ps = new PrintStream(fn)) {
+            writeCsv(ps);
+        }
+    }
+}
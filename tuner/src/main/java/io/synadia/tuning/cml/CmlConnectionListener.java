@@ -15,17 +15,32 @@ import static io.synadia.tuning.cml.CmlUtils.id;
 
 public class CmlConnectionListener implements ConnectionListener {
 
+    public static final String DISCONNECT_PHASE = "Disconnect";
+
     private final String label;
     private final List<String> servers;
     private final boolean receiver;
+    private final CmlStatsCollector stats;
+    private final RunStateMachine states;
+    private int cycle;
 
     public final AtomicBoolean disconnected;
     public final AtomicBoolean reconnected;
 
     public CmlConnectionListener(String labelSuffix, String[] servers, boolean receiver) {
+        this(labelSuffix, servers, receiver, null, null);
+    }
+
+    /**
+     * @param stats if not null, a new stats phase is started on every disconnect and every reconnect
+     * @param states if not null, connect, disconnect and reconnect are fired as they happen
+     */
+    public CmlConnectionListener(String labelSuffix, String[] servers, boolean receiver, CmlStatsCollector stats, RunStateMachine states) {
         this.label = "CL-" + labelSuffix;
         this.servers = Arrays.asList(servers);
         this.receiver = receiver;
+        this.stats = stats;
+        this.states = states;
         disconnected = new AtomicBoolean(false);
         reconnected = new AtomicBoolean(false);
     }
@@ -40,15 +55,30 @@ public class CmlConnectionListener implements ConnectionListener {
         boolean print = false;
         String cid = null;
         if (type == Events.CONNECTED || type == Events.CLOSED) {
+            if (states != null && type == Events.CONNECTED) {
+                states.fire(RunStateMachine.State.Connected);
+            }
             cid = id(conn);
             print = true;
         }
         else if (type == Events.DISCONNECTED) {
+            if (stats != null) {
+                stats.startPhase(DISCONNECT_PHASE + " " + (++cycle));
+            }
             disconnected.set(true);
+            if (states != null) {
+                states.fire(RunStateMachine.State.Disconnected);
+            }
             print = true;
         }
         else if (type == Events.RECONNECTED) {
+            if (stats != null) {
+                stats.startPhase("Reconnect " + cycle);
+            }
             reconnected.set(true);
+            if (states != null) {
+                states.fire(RunStateMachine.State.Reconnected);
+            }
             cid = id(conn);
             print = true;
         }
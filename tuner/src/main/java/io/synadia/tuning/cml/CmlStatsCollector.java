@@ -5,119 +5,186 @@ package io.synadia.tuning.cml;
 
 import io.nats.client.impl.NoOpStatistics;
 import io.synadia.utils.Debug;
+import io.synadia.utils.WriterWatchdog;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import static io.synadia.utils.Debug.format3;
 
+/*
+    Counts what the client buffered versus what it wrote to the socket, split into named phases.
+    incrementOut is called by every publishing thread, so the buffered counts are striped LongAdders.
+    registerWrite is called by the writer after each socket write, and moves the written
+    watermark of the current phase up to what had been buffered in that phase at the time.
+    A phase can be started at any time, for instance on every disconnect and reconnect.
+    Whatever was buffered in a phase but not written before the next phase started stays not written.
+    With a BufferTimeline, the same calls are also recorded into its time buckets.
+ */
 public class CmlStatsCollector extends NoOpStatistics {
     public static class Group {
-        public long bufferedMessages = 0;
-        public long bufferedBytes = 0;
-        public long writtenMessages = 0;
-        public long writtenBytes = 0;
-        public long notWrittenMessages = 0;
-        public long notWrittenBytes = 0;
+        private final LongAdder bufferedMessages = new LongAdder();
+        private final LongAdder bufferedBytes = new LongAdder();
+        private final AtomicLong writtenMessages = new AtomicLong();
+        private final AtomicLong writtenBytes = new AtomicLong();
+
+        void buffered(long bytes) {
+            bufferedMessages.increment();
+            bufferedBytes.add(bytes);
+        }
+
+        void written() {
+            // only ever raised, so a late writer can't move it backwards
+            raise(writtenMessages, bufferedMessages.sum());
+            raise(writtenBytes, bufferedBytes.sum());
+        }
+
+        /**
+         * The written counts are read before the buffered counts,
+         * so a snapshot never shows more written than buffered.
+         */
+        public Snapshot snapshot() {
+            long wm = writtenMessages.get();
+            long wb = writtenBytes.get();
+            return new Snapshot(bufferedMessages.sum(), bufferedBytes.sum(), wm, wb);
+        }
+
+        public void debug(String label, String note) {
+            snapshot().debug(label, note);
+        }
+
+        private static void raise(AtomicLong a, long value) {
+            long current = a.get();
+            while (value > current && !a.compareAndSet(current, value)) {
+                current = a.get();
+            }
+        }
+    }
+
+    public static class Snapshot {
+        public final long bufferedMessages;
+        public final long bufferedBytes;
+        public final long writtenMessages;
+        public final long writtenBytes;
+
+        public Snapshot(long bufferedMessages, long bufferedBytes, long writtenMessages, long writtenBytes) {
+            this.bufferedMessages = bufferedMessages;
+            this.bufferedBytes = bufferedBytes;
+            this.writtenMessages = writtenMessages;
+            this.writtenBytes = writtenBytes;
+        }
+
+        public long getNotWrittenMessages() {
+            return bufferedMessages - writtenMessages;
+        }
+
+        public long getNotWrittenBytes() {
+            return bufferedBytes - writtenBytes;
+        }
 
         public void debug(String label, String note) {
-            long diff = bufferedMessages - writtenMessages;
             Debug.log(label, note,
                 "Buffered vs Socket Messages: %s vs %s ... %s",
                 format3(bufferedMessages),
                 format3(writtenMessages),
-                format3(diff));
+                format3(getNotWrittenMessages()));
         }
     }
 
-    public final Group pay;
-    public final Group non;
+    public static class Phase {
+        public final String name;
+        public final long startTime;
+        public final Group pay;
+        public final Group non;
 
-    public final Group pay2;
-    public final Group non2;
+        Phase(String name) {
+            this.name = name;
+            startTime = System.currentTimeMillis();
+            pay = new Group();
+            non = new Group();
+        }
+    }
 
     public final int payloadSize;
-    public final AtomicInteger phase;
+    private final List<Phase> phases;
+    private final BufferTimeline timeline;
+    private volatile Phase current;
+    private volatile WriterWatchdog watchdog;
 
-    public CmlStatsCollector(int payloadSize) {
-        pay = new Group();
-        non = new Group();
-        pay2 = new Group();
-        non2 = new Group();
+    public CmlStatsCollector(int payloadSize, String firstPhase) {
+        this(payloadSize, firstPhase, null);
+    }
+
+    public CmlStatsCollector(int payloadSize, String firstPhase, BufferTimeline timeline) {
         this.payloadSize = payloadSize;
-        phase = new AtomicInteger(1);
+        this.timeline = timeline;
+        phases = new ArrayList<>();
+        startPhase(firstPhase);
     }
 
-    public long getTotalPayloadBufferedMessages() {
-        return pay.bufferedMessages + pay2.bufferedMessages;
+    public Phase startPhase(String name) {
+        Phase phase = new Phase(name);
+        synchronized (phases) {
+            phases.add(phase);
+            current = phase;
+        }
+        if (timeline != null) {
+            timeline.abandon();
+        }
+        return phase;
     }
 
-    public void startPhase2() {
-        phase.set(2);
+    /**
+     * Every write moves the watchdog's last write stamp forward
+     */
+    public void setWatchdog(WriterWatchdog watchdog) {
+        this.watchdog = watchdog;
+    }
+
+    public BufferTimeline getTimeline() {
+        return timeline;
+    }
+
+    public Phase getCurrentPhase() {
+        return current;
+    }
+
+    public List<Phase> getPhases() {
+        synchronized (phases) {
+            return new ArrayList<>(phases);
+        }
+    }
+
+    public long getTotalPayloadBufferedMessages() {
+        long total = 0;
+        for (Phase phase : getPhases()) {
+            total += phase.pay.bufferedMessages.sum();
+        }
+        return total;
     }
 
     @Override
     public void incrementOut(long bytes) {
-        try {
-            Group g;
-            switch (phase.get()) {
-                case 1:
-                    if (bytes >= payloadSize) {
-                        g = pay;
-                    }
-                    else {
-                        g = non;
-                    }
-                    break;
-                case 2:
-                    if (bytes >= payloadSize) {
-                        g = pay2;
-                    }
-                    else {
-                        g = non2;
-                    }
-                    break;
-                default:
-                    return;
-            }
-            g.bufferedMessages++;
-            g.bufferedBytes += bytes;
-            g.notWrittenMessages++;
-            g.notWrittenBytes += bytes;
-        }
-        catch (Exception e) {
-            e.printStackTrace();
+        Phase phase = current;
+        (bytes >= payloadSize ? phase.pay : phase.non).buffered(bytes);
+        if (timeline != null) {
+            timeline.buffered(bytes);
         }
     }
 
     @Override
     public void registerWrite(long bytes) {
-        try {
-            Group gPay;
-            Group gNon;
-            switch (phase.get()) {
-                case 1:
-                    gPay = pay;
-                    gNon = non;
-                    break;
-                case 2:
-                    gPay = pay2;
-                    gNon = non2;
-                    break;
-                default:
-                    return;
-            }
-
-            gPay.writtenMessages += gPay.notWrittenMessages;
-            gNon.writtenMessages += gNon.notWrittenMessages;
-            gPay.writtenBytes += gPay.notWrittenBytes;
-            gNon.writtenBytes += gNon.notWrittenBytes;
-            gPay.notWrittenMessages = 0;
-            gNon.notWrittenMessages = 0;
-            gPay.notWrittenBytes = 0;
-            gNon.notWrittenBytes = 0;
-        }
-        catch (Exception e) {
-            e.printStackTrace();
+        Phase phase = current;
+        phase.pay.written();
+        phase.non.written();
+        if (timeline != null) {
+            timeline.written();
+        }
+        WriterWatchdog w = watchdog;
+        if (w != null) {
+            w.written();
         }
     }
 }
@@ -0,0 +1,312 @@
+// Copyright (c) 2025 Synadia Communications Inc. All Rights Reserved.
+// See LICENSE and NOTICE file for details.
+
+package io.synadia.tuning.cml;
+
+import io.synadia.utils.FaultScript;
+import io.synadia.utils.LocalCluster;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static io.synadia.utils.ArgumentUtils.*;
+import static io.synadia.utils.Debug.log;
+
+/*
+    Runs CoreMessageLoss over every combination of tps, payload size, send buffer size, receive buffer size
+    and max messages in the outgoing queue, each combination repeated, each run with the same scripted outage.
+    Runs can be done in parallel, each run has its own subjects and its own fault proxies,
+    so runs do not see each other's messages or outages. At the end, prints the loss surface,
+    the messages and bytes lost for every combination, with the buffer sizes the kernel actually gave,
+    the publish rate reached and the socket writes that blocked, so kernel and client buffers can be set together.
+
+    Any argument that is not a sweep argument is passed to every run, for instance servers or receivers.
+ */
+public class CmlSweep {
+    private static final String[] KEYS_TPS = new String[]{"tps", "t"};
+    private static final String[] KEYS_PAYLOAD_SIZE = new String[]{"payload.size", "p"};
+    private static final String[] KEYS_SEND_BUFFER_SIZE = new String[]{"send.buffer.size", "b"};
+    private static final String[] KEYS_RECEIVE_BUFFER_SIZE = new String[]{"receive.buffer.size", "rb"};
+    private static final String[] KEYS_MAX_OUTGOING_QUEUE = new String[]{"max.outgoing.queue", "mq"};
+    private static final String[] KEYS_REPETITIONS = new String[]{"repetitions", "rp"};
+    private static final String[] KEYS_PARALLEL = new String[]{"parallel", "pl"};
+    private static final String[] KEYS_OUTAGE = new String[]{"outage", "o"};
+    private static final String[] KEYS_LOCAL_CLUSTER = new String[]{"local.cluster", "lc"};
+    private static final String[] KEYS_SERVERS = new String[]{"servers", "s"};
+    private static final String[] KEYS_SWEEP_CSV = new String[]{"sweep.csv", "sc"};
+    private static final String[] KEYS_SOCKET_STATS = new String[]{"socket.stats", "ss"};
+
+    private static final String[][] SWEEP_KEYS = new String[][]{
+        KEYS_TPS, KEYS_PAYLOAD_SIZE, KEYS_SEND_BUFFER_SIZE, KEYS_RECEIVE_BUFFER_SIZE, KEYS_MAX_OUTGOING_QUEUE,
+        KEYS_REPETITIONS, KEYS_PARALLEL, KEYS_OUTAGE, KEYS_LOCAL_CLUSTER, KEYS_SWEEP_CSV
+    };
+
+    static class Cell {
+        final int tps;
+        final int payloadSize;
+        final int sendBufferSize;
+        final int receiveBufferSize;
+        final int maxOutgoingQueue;
+        final List<CoreMessageLoss> runs = new ArrayList<>();
+
+        Cell(int tps, int payloadSize, int sendBufferSize, int receiveBufferSize, int maxOutgoingQueue) {
+            this.tps = tps;
+            this.payloadSize = payloadSize;
+            this.sendBufferSize = sendBufferSize;
+            this.receiveBufferSize = receiveBufferSize;
+            this.maxOutgoingQueue = maxOutgoingQueue;
+        }
+    }
+
+    final int[] tpsValues;
+    final int[] payloadSizes;
+    final int[] sendBufferSizes;
+    final int[] receiveBufferSizes;
+    final int[] maxOutgoingQueues;
+    final int repetitions;
+    final int parallel;
+    final String outage;
+    final boolean localCluster;
+    final String sweepCsv;
+    final String[] passThrough;
+
+    public static void main(String[] args) throws Exception {
+        new CmlSweep(args).run();
+    }
+
+    public CmlSweep(String[] args) {
+        tpsValues = parseList(getArg(args, "10k", KEYS_TPS));
+        payloadSizes = parseList(getArg(args, "12ki", KEYS_PAYLOAD_SIZE));
+        sendBufferSizes = parseList(getArg(args, "-1", KEYS_SEND_BUFFER_SIZE));
+        receiveBufferSizes = parseList(getArg(args, "-1", KEYS_RECEIVE_BUFFER_SIZE));
+        maxOutgoingQueues = parseList(getArg(args, "0", KEYS_MAX_OUTGOING_QUEUE));
+        repetitions = getIntArg(args, 1, KEYS_REPETITIONS);
+        parallel = getIntArg(args, 1, KEYS_PARALLEL);
+        outage = getArg(args, "0@5000:reset", KEYS_OUTAGE);
+        localCluster = Boolean.parseBoolean(getArg(args, "false", KEYS_LOCAL_CLUSTER));
+        sweepCsv = getArg(args, null, KEYS_SWEEP_CSV);
+
+        if (repetitions < 1 || parallel < 1) {
+            throw new IllegalArgumentException("Repetitions and parallel must be at least 1");
+        }
+        FaultScript script = FaultScript.parse(outage);
+        if (script.isEmpty()) {
+            throw new IllegalArgumentException("The sweep needs an outage, the sender only stops after a disconnect");
+        }
+        if (script.needsCluster()) {
+            // a killed node would be an outage for every run, not just the one that scheduled it
+            throw new IllegalArgumentException("Sweep outages must be proxy faults, not kill or restart");
+        }
+
+        List<String> pass = new ArrayList<>();
+        for (String arg : args) {
+            if (!isSweepArg(arg)) {
+                pass.add(arg);
+            }
+        }
+        passThrough = pass.toArray(new String[0]);
+
+        log("SWEEP", "----- Sweep Options -----");
+        log("SWEEP", "TPS", Arrays.toString(tpsValues));
+        log("SWEEP", "Payload Size", Arrays.toString(payloadSizes));
+        log("SWEEP", "Send Buffer Size", Arrays.toString(sendBufferSizes));
+        log("SWEEP", "Receive Buffer Size", Arrays.toString(receiveBufferSizes));
+        log("SWEEP", "Max Outgoing Queue", Arrays.toString(maxOutgoingQueues));
+        log("SWEEP", "Repetitions", repetitions);
+        log("SWEEP", "Parallel", parallel);
+        log("SWEEP", "Outage", outage);
+        log("SWEEP", "Local Cluster", localCluster);
+        log("SWEEP", "Passed To Every Run", Arrays.toString(passThrough));
+    }
+
+    public void run() throws Exception {
+        List<Cell> cells = new ArrayList<>();
+        for (int tps : tpsValues) {
+            for (int ps : payloadSizes) {
+                for (int sbs : sendBufferSizes) {
+                    for (int rbs : receiveBufferSizes) {
+                        for (int mq : maxOutgoingQueues) {
+                            cells.add(new Cell(tps, ps, sbs, rbs, mq));
+                        }
+                    }
+                }
+            }
+        }
+        log("SWEEP", "Combinations: %s, Runs: %s", cells.size(), cells.size() * repetitions);
+
+        // one cluster for every run, the runs are kept apart by their subjects
+        LocalCluster cluster = localCluster ? new LocalCluster(3, false).start() : null;
+        ExecutorService executor = Executors.newFixedThreadPool(parallel);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            int runIndex = 0;
+            for (int rep = 0; rep < repetitions; rep++) {
+                for (Cell cell : cells) {
+                    String[] runArgs = runArgs(cell, runIndex++, cluster);
+                    futures.add(executor.submit(() -> {
+                        CoreMessageLoss cml = new CoreMessageLoss(runArgs);
+                        cml.run();
+                        synchronized (cell.runs) {
+                            cell.runs.add(cml);
+                        }
+                        return null;
+                    }));
+                }
+            }
+            for (Future<?> f : futures) {
+                try {
+                    f.get();
+                }
+                catch (Exception e) {
+                    log("SWEEP", "Run Failed", e);
+                }
+            }
+        }
+        finally {
+            executor.shutdownNow();
+            if (cluster != null) {
+                cluster.close();
+            }
+        }
+
+        report(cells, System.out);
+        if (sweepCsv != null) {
+            try (PrintStream ps = new PrintStream(sweepCsv)) {
+                writeCsv(cells, ps);
+            }
+            log("SWEEP", "Loss surface written to %s", sweepCsv);
+        }
+    }
+
+    private String[] runArgs(Cell cell, int runIndex, LocalCluster cluster) {
+        // these come first, so they take precedence over the pass through arguments
+        List<String> list = new ArrayList<>();
+        list.add(KEYS_TPS[0] + "=" + cell.tps);
+        list.add(KEYS_PAYLOAD_SIZE[0] + "=" + cell.payloadSize);
+        list.add(KEYS_SEND_BUFFER_SIZE[0] + "=" + cell.sendBufferSize);
+        list.add(KEYS_RECEIVE_BUFFER_SIZE[0] + "=" + cell.receiveBufferSize);
+        list.add(KEYS_MAX_OUTGOING_QUEUE[0] + "=" + cell.maxOutgoingQueue);
+        list.add("faults=" + outage);
+        list.add("subject.prefix=sweep" + runIndex + ".");
+        list.add(KEYS_LOCAL_CLUSTER[0] + "=false");
+        list.add(KEYS_SOCKET_STATS[0] + "=true"); // for the effective buffer sizes and blocked writes
+        if (cluster != null) {
+            list.add(KEYS_SERVERS[0] + "=" + String.join(",", cluster.getUrls()));
+        }
+        list.addAll(Arrays.asList(passThrough));
+        return list.toArray(new String[0]);
+    }
+
+    private void report(List<Cell> cells, PrintStream out) {
+        out.println("\nLOSS SURFACE");
+        // the header and the rows share the column layout, only the last column differs, text versus number
+        String columns = "%10s %12s %20s %20s %12s %5s %12s %14s %12s %12s %12s %16s";
+        out.println(String.format(columns + " %8s",
+            "tps", "payload", "send buffer (got)", "receive buffer (got)", "max queue", "runs", "publish tps",
+            "published", "blocked avg", "lost avg", "lost max", "lost bytes avg", "lost %"));
+        for (Cell cell : cells) {
+            Stats s = new Stats(cell);
+            out.println(String.format(columns + " %8.4f",
+                format(cell.tps), format(cell.payloadSize),
+                buffer(cell.sendBufferSize, s.effectiveSendBufferSize), buffer(cell.receiveBufferSize, s.effectiveReceiveBufferSize),
+                cell.maxOutgoingQueue <= 0 ? "auto" : format(cell.maxOutgoingQueue),
+                s.runs, format((long)s.publishTpsAverage()), format(s.published), format(s.blockedWritesAverage()),
+                format(s.lostAverage()), format(s.lostMax), format(s.lostBytesAverage()), s.lostPercent()));
+        }
+    }
+
+    private void writeCsv(List<Cell> cells, PrintStream ps) {
+        ps.println("tps,payload size,send buffer size,effective send buffer size,receive buffer size,effective receive buffer size,max outgoing queue"
+            + ",runs,publish tps avg,published,blocked writes avg,lost avg,lost max,lost bytes avg,lost bytes max,lost percent");
+        for (Cell cell : cells) {
+            Stats s = new Stats(cell);
+            ps.println(cell.tps + "," + cell.payloadSize + "," + cell.sendBufferSize + "," + s.effectiveSendBufferSize
+                + "," + cell.receiveBufferSize + "," + s.effectiveReceiveBufferSize + "," + cell.maxOutgoingQueue
+                + "," + s.runs + "," + s.publishTpsAverage() + "," + s.published + "," + s.blockedWritesAverage()
+                + "," + s.lostAverage() + "," + s.lostMax
+                + "," + s.lostBytesAverage() + "," + s.lostBytesMax + "," + s.lostPercent());
+        }
+    }
+
+    static class Stats {
+        int runs;
+        long published;
+        long lost;
+        long lostMax;
+        long lostBytes;
+        long lostBytesMax;
+        long blockedWrites;
+        double publishTps;
+        int effectiveSendBufferSize = -1;
+        int effectiveReceiveBufferSize = -1;
+
+        Stats(Cell cell) {
+            synchronized (cell.runs) {
+                for (CoreMessageLoss cml : cell.runs) {
+                    runs++;
+                    published += cml.getPublished();
+                    lost += cml.getLost();
+                    lostMax = Math.max(lostMax, cml.getLost());
+                    lostBytes += cml.getLostBytes();
+                    lostBytesMax = Math.max(lostBytesMax, cml.getLostBytes());
+                    blockedWrites += cml.getBlockedWrites();
+                    publishTps += cml.getPublishTps();
+                    // every run of a cell asks for the same sizes, so gets the same
+                    effectiveSendBufferSize = Math.max(effectiveSendBufferSize, cml.getEffectiveSendBufferSize());
+                    effectiveReceiveBufferSize = Math.max(effectiveReceiveBufferSize, cml.getEffectiveReceiveBufferSize());
+                }
+            }
+        }
+
+        long lostAverage() {
+            return runs == 0 ? 0 : lost / runs;
+        }
+
+        long blockedWritesAverage() {
+            return runs == 0 ? 0 : blockedWrites / runs;
+        }
+
+        double publishTpsAverage() {
+            return runs == 0 ? 0 : publishTps / runs;
+        }
+
+        long lostBytesAverage() {
+            return runs == 0 ? 0 : lostBytes / runs;
+        }
+
+        double lostPercent() {
+            return published == 0 ? 0 : lost * 100.0 / published;
+        }
+    }
+
+    private static String buffer(int requested, int effective) {
+        String r = requested <= 0 ? "default" : format(requested);
+        return effective < 0 ? r : r + " (" + format(effective) + ")";
+    }
+
+    private static boolean isSweepArg(String arg) {
+        for (String[] keys : SWEEP_KEYS) {
+            for (String key : keys) {
+                if (arg.startsWith(key + "=")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static int[] parseList(String s) {
+        String[] split = s.split(",");
+        int[] values = new int[split.length];
+        for (int ix = 0; ix < split.length; ix++) {
+            values[ix] = parseInt(split[ix]);
+        }
+        return values;
+    }
+}
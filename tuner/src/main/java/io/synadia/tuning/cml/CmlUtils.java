@@ -7,6 +7,52 @@ import io.nats.client.impl.Headers;
 public abstract class CmlUtils {
     public static String MESSAGE_ID_KEY = "mid";
 
+    // the top bits of a message id say which sender it came from, the rest are that sender's sequence
+    public static final int SENDER_ID_SHIFT = 40;
+    public static final long SEQUENCE_MASK = (1L << SENDER_ID_SHIFT) - 1;
+    public static final int MAX_SENDERS = 1 << (63 - SENDER_ID_SHIFT);
+
+    public static long messageId(int senderIndex, long sequence) {
+        return ((long)senderIndex << SENDER_ID_SHIFT) | sequence;
+    }
+
+    public static int senderIndex(long messageId) {
+        return (int)(messageId >>> SENDER_ID_SHIFT);
+    }
+
+    public static long sequence(long messageId) {
+        return messageId & SEQUENCE_MASK;
+    }
+
+    // payload mode: 8 byte message id, 8 byte System.nanoTime() at send,
+    // then 8 byte System.nanoTime() the pacer intended it to be sent at
+    public static final int PAYLOAD_STAMP_SIZE = 24;
+
+    public static void stampPayload(byte[] payload, long messageId, long sendNanos, long intendedNanos) {
+        putLong(payload, 0, messageId);
+        putLong(payload, 8, sendNanos);
+        putLong(payload, 16, intendedNanos);
+    }
+
+    public static long extractPayloadMessageId(Message msg) {
+        byte[] data = msg.getData();
+        return data == null || data.length < PAYLOAD_STAMP_SIZE ? -1 : getLong(data, 0);
+    }
+
+    public static long extractPayloadSendNanos(Message msg) {
+        byte[] data = msg.getData();
+        return data == null || data.length < PAYLOAD_STAMP_SIZE ? -1 : getLong(data, 8);
+    }
+
+    public static long extractPayloadIntendedNanos(Message msg) {
+        byte[] data = msg.getData();
+        return data == null || data.length < PAYLOAD_STAMP_SIZE ? -1 : getLong(data, 16);
+    }
+
+    public static long extractMessageId(Message msg, IdMode idMode) {
+        return idMode == IdMode.Payload ? extractPayloadMessageId(msg) : extractMessageId(msg);
+    }
+
     public static long extractMessageId(Message msg) {
         Headers headers = msg.getHeaders();
         if (headers != null) {
@@ -21,6 +67,28 @@ public abstract class CmlUtils {
         return -1;
     }
 
+    static void putLong(byte[] b, int off, long v) {
+        b[off]     = (byte)(v >>> 56);
+        b[off + 1] = (byte)(v >>> 48);
+        b[off + 2] = (byte)(v >>> 40);
+        b[off + 3] = (byte)(v >>> 32);
+        b[off + 4] = (byte)(v >>> 24);
+        b[off + 5] = (byte)(v >>> 16);
+        b[off + 6] = (byte)(v >>> 8);
+        b[off + 7] = (byte)v;
+    }
+
+    static long getLong(byte[] b, int off) {
+        return ((long)b[off] << 56)
+            | ((long)(b[off + 1] & 0xFF) << 48)
+            | ((long)(b[off + 2] & 0xFF) << 40)
+            | ((long)(b[off + 3] & 0xFF) << 32)
+            | ((long)(b[off + 4] & 0xFF) << 24)
+            | ((long)(b[off + 5] & 0xFF) << 16)
+            | ((long)(b[off + 6] & 0xFF) << 8)
+            | ((long)(b[off + 7] & 0xFF));
+    }
+
     public static String id(Connection conn) {
         return Integer.toHexString(conn.hashCode()).toUpperCase() + "/" + conn.getServerInfo().getClientId();
     }
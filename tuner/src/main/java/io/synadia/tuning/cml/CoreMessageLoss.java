@@ -2,28 +2,47 @@ package io.synadia.tuning.cml;
 
 import io.nats.client.Connection;
 import io.nats.client.Dispatcher;
+import io.nats.client.MessageHandler;
 import io.nats.client.Nats;
 import io.nats.client.Options;
 import io.nats.client.impl.Headers;
 import io.nats.client.impl.NoOpStatistics;
+import io.synadia.utils.FaultEvent;
+import io.synadia.utils.FaultProxy;
+import io.synadia.utils.FaultScript;
+import io.synadia.utils.InstrumentedSocketDataPort;
+import io.synadia.utils.LatencyHistogram;
+import io.synadia.utils.LocalCluster;
+import io.synadia.utils.OutgoingQueueSampler;
+import io.synadia.utils.Pacer;
 import io.synadia.utils.PropertyUtils;
+import io.synadia.utils.RateProfile;
+import io.synadia.utils.ResultStore;
+import io.synadia.utils.VirtualThreads;
+import io.synadia.utils.WriterWatchdog;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
-import static io.synadia.tuning.cml.CmlUtils.MESSAGE_ID_KEY;
-import static io.synadia.tuning.cml.CmlUtils.extractMessageId;
+import static io.synadia.tuning.cml.CmlUtils.*;
 import static io.synadia.utils.ArgumentUtils.*;
 import static io.synadia.utils.Debug.log;
+import static io.synadia.utils.Debug.simpleTime;
 import static io.synadia.utils.Debug.stringify;
 import static io.synadia.utils.MiscUtils.sleep;
 
@@ -37,26 +56,77 @@ public class CoreMessageLoss {
     private static final String TERMINATE_SUBJECT = "term";
     private static final String TEST_QUEUE = "q";
     private static final long WAIT_FOR_MESSAGES = 5000;
+    private static final int MAX_RECEIVERS_LISTED = 20;
 
     private static final String KEY_PROPS = "props";
     private static final String[] KEYS_SERVERS = new String[]{"servers", "s"};
     private static final String[] KEYS_TPS = new String[]{"tps", "t"};
     private static final String[] KEYS_PAYLOAD_SIZE = new String[]{"payload.size", "p"};
     private static final String[] KEYS_RECEIVERS = new String[]{"receivers", "r"};
+    private static final String[] KEYS_SENDERS = new String[]{"senders", "n"};
     private static final String[] KEYS_SEND_BUFFER_SIZE = new String[]{"send.buffer.size", "b"};
+    private static final String[] KEYS_RECEIVE_BUFFER_SIZE = new String[]{"receive.buffer.size", "rb"};
     private static final String[] KEYS_CONNECTION_TIMEOUT_MILLIS = new String[]{"connection.timeout.millis", "c"};
+    private static final String[] KEYS_GAP_WINDOW_MILLIS = new String[]{"gap.window.millis", "g"};
+    private static final String[] KEYS_ID_MODE = new String[]{"id.mode", "i"};
+    private static final String[] KEYS_FAULTS = new String[]{"faults", "f"};
+    private static final String[] KEYS_LOCAL_CLUSTER = new String[]{"local.cluster", "lc"};
+    private static final String[] KEYS_PACING = new String[]{"pacing", "pc"};
+    private static final String[] KEYS_PACING_BURST = new String[]{"pacing.burst", "pb"};
+    private static final String[] KEYS_PACING_PERIOD_MILLIS = new String[]{"pacing.period.millis", "pp"};
+    private static final String[] KEYS_PACING_DELTA_TPS = new String[]{"pacing.delta.tps", "pd"};
+    private static final String[] KEYS_TIMELINE_CSV = new String[]{"timeline.csv", "tc"};
+    private static final String[] KEYS_TIMELINE_BUCKET_MILLIS = new String[]{"timeline.bucket.millis", "tb"};
+    private static final String[] KEYS_TIMELINE_BUCKETS = new String[]{"timeline.buckets", "tn"};
+    private static final String[] KEYS_QUEUE_SAMPLE_MILLIS = new String[]{"queue.sample.millis", "qs"};
+    private static final String[] KEYS_QUEUE_SAMPLE_CSV = new String[]{"queue.sample.csv", "qc"};
+    private static final String[] KEYS_RECEIVER_THREADS = new String[]{"receiver.threads", "rt"};
+    private static final String[] KEYS_RECEIVER_DISPATCHERS = new String[]{"receiver.dispatchers", "rd"};
+    private static final String[] KEYS_MAX_OUTGOING_QUEUE = new String[]{"max.outgoing.queue", "mq"};
+    private static final String[] KEYS_SUBJECT_PREFIX = new String[]{"subject.prefix", "sp"};
+    private static final String[] KEYS_RESULT_STORE = new String[]{"result.store", "rs"};
+    private static final String[] KEYS_SOCKET_STATS = new String[]{"socket.stats", "ss"};
+    private static final String[] KEYS_WATCHDOG_MILLIS = new String[]{"watchdog.millis", "wd"};
 
     // arguments
     final String[] servers;
     final int targetTps;
     final int payloadSize;
     final int numReceivers;
+    final int numSenders;
     final int sendBufferSize;
+    final int receiveBufferSize;
     final int maxMessagesInOutgoingQueue;
     final long connectionTimeoutMillis;
+    final long gapWindowMillis;
+    final IdMode idMode;
+    final String pacing;
+    final int pacingBurst;
+    final long pacingPeriodMillis;
+    final int pacingDeltaTps;
+    final String timelineCsv;
+    final long timelineBucketMillis;
+    final int timelineBuckets;
+    final long queueSampleMillis;
+    final String queueSampleCsv;
+    final ThreadMode receiverThreads;
+    final int receiverDispatchers;
+    final String subjectPrefix;
+    final String testSubject;
+    final String terminateSubject;
+    final String resultStore;
+    final boolean socketStats;
+    final long watchdogMillis;
+    final RateProfile rateProfile; // per sender
+    final FaultScript faultScript;
+    final boolean localCluster;
 
     // per run
     ScheduledExecutorService scheduler;
+    String[] connectUrls;
+    List<FaultProxy> proxies = new ArrayList<>();
+    LocalCluster cluster;
+    ExecutorService receiverExecutor;
 
     public static void main(String[] args) throws Exception {
         new CoreMessageLoss(args).run();
@@ -71,67 +141,228 @@ public class CoreMessageLoss {
         int _targetTps = getIntProperty(props, 10_000, KEYS_TPS[0]);
         int _payloadSize = getIntProperty(props, 12 * 1024, KEYS_PAYLOAD_SIZE[0]);
         int _numReceivers = getIntProperty(props, 1, KEYS_RECEIVERS[0]);
+        int _numSenders = getIntProperty(props, 1, KEYS_SENDERS[0]);
         int _sendBufferSize = getIntProperty(props, -1, KEYS_SEND_BUFFER_SIZE[0]);
+        int _receiveBufferSize = getIntProperty(props, -1, KEYS_RECEIVE_BUFFER_SIZE[0]);
         long _connectionTimeoutMillis = getLongProperty(props, 5000, KEYS_CONNECTION_TIMEOUT_MILLIS[0]);
+        long _gapWindowMillis = getLongProperty(props, 500, KEYS_GAP_WINDOW_MILLIS[0]);
+        String _idMode = getProperty(props, IdMode.Header.name(), KEYS_ID_MODE[0]);
+        String _faults = getProperty(props, null, KEYS_FAULTS[0]);
+        String _localCluster = getProperty(props, "false", KEYS_LOCAL_CLUSTER[0]);
+        String _pacing = getProperty(props, "constant", KEYS_PACING[0]);
+        int _pacingBurst = getIntProperty(props, 0, KEYS_PACING_BURST[0]);
+        long _pacingPeriodMillis = getLongProperty(props, 10_000, KEYS_PACING_PERIOD_MILLIS[0]);
+        int _pacingDeltaTps = getIntProperty(props, -1, KEYS_PACING_DELTA_TPS[0]);
+        String _timelineCsv = getProperty(props, null, KEYS_TIMELINE_CSV[0]);
+        long _timelineBucketMillis = getLongProperty(props, 50, KEYS_TIMELINE_BUCKET_MILLIS[0]);
+        int _timelineBuckets = getIntProperty(props, 200, KEYS_TIMELINE_BUCKETS[0]);
+        long _queueSampleMillis = getLongProperty(props, 0, KEYS_QUEUE_SAMPLE_MILLIS[0]);
+        String _queueSampleCsv = getProperty(props, null, KEYS_QUEUE_SAMPLE_CSV[0]);
+        String _receiverThreads = getProperty(props, ThreadMode.Platform.name(), KEYS_RECEIVER_THREADS[0]);
+        int _receiverDispatchers = getIntProperty(props, 1, KEYS_RECEIVER_DISPATCHERS[0]);
+        int _maxOutgoingQueue = getIntProperty(props, 0, KEYS_MAX_OUTGOING_QUEUE[0]);
+        String _subjectPrefix = getProperty(props, "", KEYS_SUBJECT_PREFIX[0]);
+        String _resultStore = getProperty(props, ResultStore.DEFAULT_FILE, KEYS_RESULT_STORE[0]);
+        String _socketStats = getProperty(props, "false", KEYS_SOCKET_STATS[0]);
+        long _watchdogMillis = getLongProperty(props, 0, KEYS_WATCHDOG_MILLIS[0]);
 
         // command line takes precedent if present
         _servers = getArg(args, _servers, KEYS_SERVERS);
         _targetTps = getIntArg(args, _targetTps, KEYS_TPS);
         _payloadSize = getIntArg(args, _payloadSize, KEYS_PAYLOAD_SIZE);
         _numReceivers = getIntArg(args, _numReceivers, KEYS_RECEIVERS);
+        _numSenders = getIntArg(args, _numSenders, KEYS_SENDERS);
         _sendBufferSize = getIntArg(args, _sendBufferSize, KEYS_SEND_BUFFER_SIZE);
+        _receiveBufferSize = getIntArg(args, _receiveBufferSize, KEYS_RECEIVE_BUFFER_SIZE);
         _connectionTimeoutMillis = getLongArg(args, _connectionTimeoutMillis, KEYS_CONNECTION_TIMEOUT_MILLIS);
+        _gapWindowMillis = getLongArg(args, _gapWindowMillis, KEYS_GAP_WINDOW_MILLIS);
+        _idMode = getArg(args, _idMode, KEYS_ID_MODE);
+        _faults = getArg(args, _faults, KEYS_FAULTS);
+        _localCluster = getArg(args, _localCluster, KEYS_LOCAL_CLUSTER);
+        _pacing = getArg(args, _pacing, KEYS_PACING);
+        _pacingBurst = getIntArg(args, _pacingBurst, KEYS_PACING_BURST);
+        _pacingPeriodMillis = getLongArg(args, _pacingPeriodMillis, KEYS_PACING_PERIOD_MILLIS);
+        _pacingDeltaTps = getIntArg(args, _pacingDeltaTps, KEYS_PACING_DELTA_TPS);
+        _timelineCsv = getArg(args, _timelineCsv, KEYS_TIMELINE_CSV);
+        _timelineBucketMillis = getLongArg(args, _timelineBucketMillis, KEYS_TIMELINE_BUCKET_MILLIS);
+        _timelineBuckets = getIntArg(args, _timelineBuckets, KEYS_TIMELINE_BUCKETS);
+        _queueSampleMillis = getLongArg(args, _queueSampleMillis, KEYS_QUEUE_SAMPLE_MILLIS);
+        _queueSampleCsv = getArg(args, _queueSampleCsv, KEYS_QUEUE_SAMPLE_CSV);
+        _receiverThreads = getArg(args, _receiverThreads, KEYS_RECEIVER_THREADS);
+        _receiverDispatchers = getIntArg(args, _receiverDispatchers, KEYS_RECEIVER_DISPATCHERS);
+        _maxOutgoingQueue = getIntArg(args, _maxOutgoingQueue, KEYS_MAX_OUTGOING_QUEUE);
+        _subjectPrefix = getArg(args, _subjectPrefix, KEYS_SUBJECT_PREFIX);
+        _resultStore = getArg(args, _resultStore, KEYS_RESULT_STORE);
+        _socketStats = getArg(args, _socketStats, KEYS_SOCKET_STATS);
+        _watchdogMillis = getLongArg(args, _watchdogMillis, KEYS_WATCHDOG_MILLIS);
 
         //noinspection DataFlowIssue
         servers = _servers.split(",");
         targetTps = _targetTps;
         payloadSize = _payloadSize;
         numReceivers = _numReceivers;
+        numSenders = _numSenders;
+        if (numSenders < 1 || numSenders > MAX_SENDERS) {
+            throw new IllegalArgumentException("Number of senders must be between 1 and " + MAX_SENDERS);
+        }
         sendBufferSize = _sendBufferSize;
+        receiveBufferSize = _receiveBufferSize;
         connectionTimeoutMillis = _connectionTimeoutMillis;
-        int mmiq = targetTps * 125 / 100; // 125 % of target tps
-        maxMessagesInOutgoingQueue = Math.max(mmiq, Options.DEFAULT_MAX_MESSAGES_IN_OUTGOING_QUEUE);
+        gapWindowMillis = _gapWindowMillis;
+        //noinspection DataFlowIssue
+        idMode = IdMode.parse(_idMode);
+        if (idMode == IdMode.Payload && payloadSize < PAYLOAD_STAMP_SIZE) {
+            throw new IllegalArgumentException("Payload id mode requires a payload size of at least " + PAYLOAD_STAMP_SIZE);
+        }
+        faultScript = FaultScript.parse(_faults);
+        //noinspection DataFlowIssue
+        localCluster = Boolean.parseBoolean(_localCluster);
+        if (faultScript.highestProxyIndex() >= servers.length) {
+            throw new IllegalArgumentException("Fault script refers to a server that is not configured.");
+        }
+        if (faultScript.needsCluster() && !localCluster) {
+            throw new IllegalArgumentException("Fault script kill and restart steps require local.cluster=true");
+        }
+        pacing = _pacing;
+        // a burst of 0 means allow catching up on 10ms worth of messages
+        pacingBurst = _pacingBurst > 0 ? _pacingBurst : Math.max(1, targetTps / numSenders / 100);
+        pacingPeriodMillis = _pacingPeriodMillis;
+        // a delta of -1 means ramp up from 0, step by tps or swing by half of tps
+        pacingDeltaTps = _pacingDeltaTps >= 0 ? _pacingDeltaTps
+            : ("sine".equalsIgnoreCase(pacing) ? targetTps / 2 : targetTps);
+        //noinspection DataFlowIssue
+        rateProfile = RateProfile.of(pacing, (double)targetTps / numSenders, (double)pacingDeltaTps / numSenders, pacingPeriodMillis * 1_000_000L);
+        timelineCsv = _timelineCsv;
+        timelineBucketMillis = _timelineBucketMillis;
+        timelineBuckets = _timelineBuckets;
+        if (timelineCsv != null && (timelineBucketMillis < BufferTimeline.MIN_BUCKET_MILLIS || timelineBucketMillis > BufferTimeline.MAX_BUCKET_MILLIS)) {
+            throw new IllegalArgumentException("Timeline bucket millis must be from " + BufferTimeline.MIN_BUCKET_MILLIS + " to " + BufferTimeline.MAX_BUCKET_MILLIS);
+        }
+        queueSampleMillis = _queueSampleMillis;
+        queueSampleCsv = _queueSampleCsv;
+        if (queueSampleCsv != null && queueSampleMillis < 1) {
+            throw new IllegalArgumentException("Queue sample csv requires queue.sample.millis");
+        }
+        //noinspection DataFlowIssue
+        receiverThreads = ThreadMode.parse(_receiverThreads);
+        receiverDispatchers = _receiverDispatchers;
+        if (receiverDispatchers < 1) {
+            throw new IllegalArgumentException("Receiver dispatchers must be at least 1");
+        }
+        if (_maxOutgoingQueue > 0) {
+            maxMessagesInOutgoingQueue = _maxOutgoingQueue;
+        }
+        else {
+            int mmiq = targetTps * 125 / 100; // 125 % of target tps
+            maxMessagesInOutgoingQueue = Math.max(mmiq, Options.DEFAULT_MAX_MESSAGES_IN_OUTGOING_QUEUE);
+        }
+        // a prefix keeps runs that share servers from seeing each other's messages
+        subjectPrefix = _subjectPrefix;
+        testSubject = _subjectPrefix + TEST_SUBJECT;
+        terminateSubject = _subjectPrefix + TERMINATE_SUBJECT;
+        // none means do not keep the result
+        resultStore = "none".equalsIgnoreCase(_resultStore) ? null : _resultStore;
+        //noinspection DataFlowIssue
+        socketStats = Boolean.parseBoolean(_socketStats);
+        watchdogMillis = _watchdogMillis;
 
         log("TPS", "----- Application Options -----");
         log("TPS", "Servers", servers);
         log("TPS", "Target TPS", targetTps);
         log("TPS", "Payload Size", payloadSize);
         log("TPS", "Num Receivers", numReceivers);
+        log("TPS", "Receiver Threads", receiverThreads == ThreadMode.Virtual && !VirtualThreads.isAvailable()
+            ? "Virtual (not available before Java 21, using platform threads)" : receiverThreads);
+        log("TPS", "Receiver Dispatchers", receiverDispatchers);
+        log("TPS", "Subjects", testSubject, terminateSubject);
+        log("TPS", "Num Senders", numSenders);
         log("TPS", "Send Buffer Size", sendBufferSize);
+        log("TPS", "Receive Buffer Size", receiveBufferSize);
         log("TPS", "Max Messages In Outgoing Queue", maxMessagesInOutgoingQueue);
         log("TPS", "Connection Timeout Millis", connectionTimeoutMillis);
+        log("TPS", "Gap Window Millis", gapWindowMillis);
+        log("TPS", "Id Mode", idMode);
+        log("TPS", "Local Cluster", localCluster);
+        log("TPS", "Faults", faultScript.isEmpty() ? "None" : faultScript.steps);
+        log("TPS", "Pacing", pacing);
+        log("TPS", "Pacing Burst", pacingBurst);
+        log("TPS", "Pacing Period Millis", pacingPeriodMillis);
+        log("TPS", "Pacing Delta TPS", pacingDeltaTps);
+        if (timelineCsv != null) {
+            log("TPS", "Timeline Csv", timelineCsv);
+            log("TPS", "Timeline Bucket Millis", timelineBucketMillis);
+            log("TPS", "Timeline Buckets", timelineBuckets);
+        }
+        if (queueSampleMillis > 0) {
+            log("TPS", "Queue Sample Millis", queueSampleMillis);
+            log("TPS", "Queue Sample Csv", queueSampleCsv == null ? "None" : queueSampleCsv);
+        }
+        log("TPS", "Result Store", resultStore == null ? "None" : resultStore);
+        log("TPS", "Socket Stats", socketStats);
+        log("TPS", "Watchdog Millis", watchdogMillis == 0 ? "Off" : watchdogMillis);
 
         reportSocketBufferSize();
     }
 
-    public void run() throws InterruptedException {
+    public void run() throws IOException, InterruptedException {
         scheduler = Executors.newScheduledThreadPool(1);
         try {
+            // a local cluster replaces the configured servers, one node per server
+            String[] serverUrls = servers;
+            if (localCluster) {
+                cluster = new LocalCluster(servers.length, false).start();
+                serverUrls = cluster.getUrls();
+            }
+
+            // with proxy faults every client goes through a proxy in front of each server
+            connectUrls = serverUrls;
+            if (faultScript.needsProxies()) {
+                connectUrls = new String[serverUrls.length];
+                for (int ix = 0; ix < serverUrls.length; ix++) {
+                    FaultProxy proxy = new FaultProxy("PROXY-" + ix, serverUrls[ix]).start();
+                    proxies.add(proxy);
+                    connectUrls[ix] = proxy.getUrl();
+                }
+            }
 
             for (int ix = 0; ix < numReceivers; ix++) {
                 receivers.add(new Receiver());
             }
+            receiversReady = new CountDownLatch(numReceivers);
+            for (int sx = 0; sx < numSenders; sx++) {
+                senders.add(new Sender(sx, numSenders == 1 ? "" : "-" + sx, payloadSize));
+            }
 
-            // Receiver threads
+            // Receiver threads. With virtual threads, the receivers' connections
+            // also share one executor of virtual threads, dispatchers included
+            ThreadFactory receiverThreadFactory = null;
+            if (receiverThreads == ThreadMode.Virtual) {
+                receiverThreadFactory = VirtualThreads.factory("R");
+                receiverExecutor = Executors.newCachedThreadPool(VirtualThreads.factory("R-nats"));
+            }
             List<Thread> threads = new ArrayList<>();
             for (int rx = 0; rx < numReceivers; rx++) {
                 int finalRx = rx;
-                Thread r = new Thread(() -> {
+                Runnable rr = () -> {
                     try {
                         receive(finalRx);
                     }
                     catch (Exception ignored) {
                     }
-                });
-                r.setName("R-" + rx + "-main");
+                };
+                Thread r;
+                if (receiverThreadFactory == null) {
+                    r = new Thread(rr);
+                    r.setName("R-" + rx + "-main");
+                }
+                else {
+                    r = receiverThreadFactory.newThread(rr);
+                }
                 r.start();
                 threads.add(r);
             }
-            for (int rx = 0; rx < numReceivers; rx++) {
-                AtomicBoolean ready = receivers.get(rx).ready;
-                while (!ready.get()) {
-                    sleep(10);
-                }
+            if (!receiversReady.await(connectionTimeoutMillis + 5000, TimeUnit.MILLISECONDS)) {
+                log(TPS_RECEIVER, "Not All Receivers Ready: %s", receiversReady.getCount());
             }
 
             // Receivers periodic reporting
@@ -139,14 +370,14 @@ public class CoreMessageLoss {
                 () -> {
                     long receivedMessages = 0;
                     for (int ix = 0; ix < numReceivers; ix++) {
-                        long rm = receivers.get(ix).receivedMessages;
+                        long rm = receivers.get(ix).receivedMessages.get();
                         receivedMessages += rm;
                     }
-                    log(TPS_RECEIVER, "Total Received Messages: %s", receivedMessages, "Highest Message Id Received: %s", highestMessageId.get());
+                    log(TPS_RECEIVER, "Total Received Messages: %s", receivedMessages, "Highest Message Id Received: %s", highestMessageIds());
                     if (System.currentTimeMillis() - lastReceive.get() > WAIT_FOR_MESSAGES) {
                         log(TPS_RECEIVER, "RECEIVER TIMEOUT: %s", System.currentTimeMillis() - lastReceive.get());
                         for (Receiver r : receivers) {
-                            r.done.set(true);
+                            r.finish();
                         }
                     }
                 },
@@ -156,68 +387,236 @@ public class CoreMessageLoss {
                 () -> {
                     long receivedMessages = 0;
                     for (int ix = 0; ix < numReceivers; ix++) {
-                        long rm = receivers.get(ix).receivedMessages;
+                        long rm = receivers.get(ix).receivedMessages.get();
                         receivedMessages += rm;
                     }
                     log(TPS_RECEIVER, "Total Received Messages: %s", receivedMessages);
+                    if (idMode == IdMode.Payload) {
+                        logIntervalLatency();
+                    }
                 },
                 1, 1, TimeUnit.SECONDS);
 
-            // Sender thread
-            Thread s = new Thread(() -> {
-                try {
-                    send();
-                }
-                catch (Exception ignored) {
-                }
-            });
-            s.setName("S-main");
-            s.start();
+            // Live gap detection, one per sender
+            for (Sender sender : senders) {
+                scheduler.scheduleAtFixedRate(sender.gapDetector, gapWindowMillis, gapWindowMillis, TimeUnit.MILLISECONDS);
+            }
+
+            // Faults are timed from when the senders start
+            faultScript.schedule(scheduler, proxies, cluster);
+
+            // Sender threads
+            List<Thread> senderThreads = new ArrayList<>();
+            for (int sx = 0; sx < numSenders; sx++) {
+                Sender sender = senders.get(sx);
+                Thread s = new Thread(() -> {
+                    try {
+                        send(sender);
+                    }
+                    catch (Exception ignored) {
+                    }
+                });
+                s.setName("S-" + sx + "-main");
+                s.start();
+                senderThreads.add(s);
+            }
 
             // wait for all the threads to finish
-            s.join();
+            for (Thread t : senderThreads) {
+                t.join();
+            }
+            for (Sender sender : senders) {
+                if (sender.queueSampler != null) {
+                    sender.queueSampler.stop(); // in case the sender ended early
+                }
+                if (sender.watchdog != null) {
+                    sender.watchdog.stop();
+                }
+            }
             for (Thread t : threads) {
                 t.join();
             }
 
             sleep(100); // give callbacks time to finish
+            for (Sender sender : senders) {
+                sender.gapDetector.finish();
+            }
 
-            reportSocketBufferSize();
+            reportEffectiveSocketBufferSizes();
             reportReceivers();
             reportSenders();
+            reportFaults();
+            writeCsvFiles();
+            storeResult();
         }
         finally {
             if (!scheduler.isShutdown()) {
                 scheduler.shutdownNow();
             }
+            for (FaultProxy proxy : proxies) {
+                proxy.close();
+            }
+            if (receiverExecutor != null) {
+                receiverExecutor.shutdownNow();
+            }
+            if (cluster != null) {
+                cluster.close();
+            }
         }
     }
 
     private void reportReceivers() {
-        List<Long> receivedMessageIds = new ArrayList<>();
-        messageIdsTrackingQueue.drainTo(receivedMessageIds);
-        receivedMessageIds.sort(Long::compareTo);
-
         System.out.println("\n" + TPS_RECEIVER);
         long receivedMessages = 0;
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        long idle = 0;
+        double sumSquares = 0;
         for (int ix = 0; ix < numReceivers; ix++) {
-            long rm = receivers.get(ix).receivedMessages;
+            long rm = receivers.get(ix).receivedMessages.get();
             receivedMessages += rm;
-            System.out.println(stringify("  Receiver %s Received Messages:  %s", ix, formatRight(rm, 7)));
+            min = Math.min(min, rm);
+            max = Math.max(max, rm);
+            sumSquares += (double)rm * rm;
+            if (rm == 0) {
+                idle++;
+            }
+            if (numReceivers <= MAX_RECEIVERS_LISTED) {
+                System.out.println(stringify("  Receiver %s Received Messages:  %s", ix, formatRight(rm, 7)));
+            }
+        }
+        if (numReceivers > MAX_RECEIVERS_LISTED) {
+            // too many to list, show how evenly the queue group spread the messages instead
+            double mean = (double)receivedMessages / numReceivers;
+            double stdDev = Math.sqrt(Math.max(0, sumSquares / numReceivers - mean * mean));
+            System.out.println(stringify("  Receivers:                     %s", formatRight(numReceivers, 7)));
+            System.out.println(stringify("  Min / Mean / Max Per Receiver: %s / %s / %s", format(min), String.format("%.1f", mean), format(max)));
+            System.out.println(stringify("  Std Dev Per Receiver:          %s", String.format("%.1f", stdDev)));
+            System.out.println(stringify("  Receivers With No Messages:    %s", formatRight(idle, 7)));
         }
         System.out.println("  ------------------------------ -------");
         System.out.println(stringify("  Total Received Messages:       %s", formatRight(receivedMessages, 7)));
+        if (socketStats) {
+            LatencyHistogram readBytes = new LatencyHistogram();
+            for (int ix = 0; ix < numReceivers; ix++) {
+                InstrumentedSocketDataPort.Stats socket = InstrumentedSocketDataPort.getStats(socketName(TPS_RECEIVER + "-" + ix));
+                if (socket != null) {
+                    readBytes.add(socket.readBytes);
+                }
+            }
+            System.out.println("  Socket Read Bytes: " + InstrumentedSocketDataPort.Stats.bytes(readBytes));
+        }
+
+        for (Sender sender : senders) {
+            MessageIdTracker idTracker = sender.idTracker;
+            if (numSenders > 1) {
+                System.out.println(stringify("\n  From %s", sender.label));
+                System.out.println(stringify("  Received Messages:             %s", formatRight(idTracker.getReceived(), 7)));
+            }
+            System.out.println(stringify("  Live Gaps Detected:            %s", formatRight(sender.gapDetector.getGaps(), 7)));
+            if (idTracker.getDuplicates() > 0) {
+                System.out.println(stringify("  Duplicate Messages:            %s", formatRight(idTracker.getDuplicates(), 7)));
+            }
 
-        long expected = receivedMessageIds.get(0);
-        for (Long mid : receivedMessageIds) {
-            if (mid != expected) {
-                System.out.println(stringify("\n  Received Gap Message: %s", format(mid)));
+            idTracker.forEachMissingRange((expected, diff) -> {
+                System.out.println(stringify("\n  Received Gap Message: %s", format(expected + diff)));
                 System.out.println(stringify("  Expected Gap Message: %s", format(expected)));
-                long diff = mid - expected;
                 System.out.println(stringify("  Gap: %s", diff));
                 System.out.println(stringify("  Gap Bytes (Approximate): %s", format(diff * payloadSize)));
+            });
+        }
+
+        reportDispatchers();
+
+        if (idMode == IdMode.Payload) {
+            LatencyHistogram raw = new LatencyHistogram();
+            LatencyHistogram corrected = new LatencyHistogram();
+            for (Receiver r : receivers) {
+                raw.add(r.latency);
+                corrected.add(r.correctedLatency);
+            }
+            System.out.println("\n  Latency (publish to receive)");
+            printLatency("Raw      ", raw);
+            printLatency("Corrected", corrected);
+        }
+    }
+
+    private void reportDispatchers() {
+        List<DispatcherStats> all = new ArrayList<>();
+        for (Receiver r : receivers) {
+            all.addAll(r.dispatcherStats);
+        }
+        if (all.isEmpty()) {
+            return;
+        }
+        System.out.println("\n  Dispatchers");
+        if (all.size() <= MAX_RECEIVERS_LISTED) {
+            for (DispatcherStats ds : all) {
+                printDispatcher(ds.label, ds.getMessages(), ds.getRate(), ds.getBusyPercent(), ds.getDropped(), ds.getHandlerTime());
             }
-            expected = mid + 1;
+            return;
+        }
+        // too many to list, show the busiest one and the totals
+        DispatcherStats busiest = all.get(0);
+        long messages = 0;
+        long dropped = 0;
+        LatencyHistogram handlerTime = new LatencyHistogram();
+        for (DispatcherStats ds : all) {
+            if (ds.getBusyPercent() > busiest.getBusyPercent()) {
+                busiest = ds;
+            }
+            messages += ds.getMessages();
+            dropped += ds.getDropped();
+            handlerTime.add(ds.getHandlerTime());
+        }
+        printDispatcher("Busiest " + busiest.label, busiest.getMessages(), busiest.getRate(), busiest.getBusyPercent(), busiest.getDropped(), busiest.getHandlerTime());
+        printDispatcher("All " + all.size(), messages, 0, -1, dropped, handlerTime);
+    }
+
+    private void printDispatcher(String label, long messages, double rate, double busyPercent, long dropped, LatencyHistogram handlerTime) {
+        StringBuilder sb = new StringBuilder("    ").append(String.format("%-16s", label));
+        sb.append(" | msgs ").append(formatRight(messages, 9));
+        if (rate > 0) {
+            sb.append(String.format(" | %,10.0f/s", rate));
+        }
+        if (busyPercent >= 0) {
+            sb.append(String.format(" | busy %5.1f%%", busyPercent));
+        }
+        sb.append(" | dropped ").append(format(dropped));
+        sb.append(" | handler p99 ").append(formatLatency(handlerTime.getValueAtPercentile(99)));
+        sb.append(" | max ").append(formatLatency(handlerTime.getMax()));
+        System.out.println(sb);
+    }
+
+    private void printLatency(String label, LatencyHistogram h) {
+        StringBuilder sb = new StringBuilder("    ").append(label);
+        for (double p : LatencyHistogram.STANDARD_PERCENTILES) {
+            sb.append(String.format(" | p%-4s %s", LatencyHistogram.percentileLabel(p), formatLatency(h.getValueAtPercentile(p))));
+        }
+        sb.append(" | max ").append(formatLatency(h.getMax()));
+        sb.append(" | count ").append(format(h.getTotalCount()));
+        System.out.println(sb);
+    }
+
+    private static String formatLatency(long nanos) {
+        return String.format("%10s", LatencyHistogram.millis(nanos));
+    }
+
+    // per second latency, the difference between this and the last cumulative snapshot
+    final LatencyHistogram latencyCumulative = new LatencyHistogram();
+    final LatencyHistogram latencyPrevious = new LatencyHistogram();
+    final LatencyHistogram latencyInterval = new LatencyHistogram();
+
+    private void logIntervalLatency() {
+        latencyCumulative.reset();
+        for (Receiver r : receivers) {
+            latencyCumulative.add(r.latency);
+        }
+        latencyInterval.setToDifference(latencyCumulative, latencyPrevious);
+        latencyPrevious.reset();
+        latencyPrevious.add(latencyCumulative);
+        if (latencyInterval.getTotalCount() > 0) {
+            log(TPS_RECEIVER, "Interval Latency: %s", latencyInterval.summary());
         }
     }
 
@@ -225,18 +624,96 @@ public class CoreMessageLoss {
         // ----------------------------------------------------------------------------------------------------
         // Report Sender
         // ----------------------------------------------------------------------------------------------------
-        System.out.println("\n" + TPS_SENDER);
-        System.out.println("Before Disconnect...");
-        printSendResultAndDiff("Buffered vs Socket Messages",
-            sendStats.pay.bufferedMessages, sendStats.pay.writtenMessages);
-        printSendResultAndDiff("Buffered vs Socket Bytes   ",
-            sendStats.pay.bufferedBytes, sendStats.pay.writtenBytes);
+        for (Sender sender : senders) {
+            CmlStatsCollector sendStats = sender.sendStats;
+            if (sendStats == null) {
+                continue; // never connected
+            }
+            System.out.println("\n" + sender.label);
+            for (CmlStatsCollector.Phase phase : sendStats.getPhases()) {
+                CmlStatsCollector.Snapshot pay = phase.pay.snapshot();
+                System.out.println(phase.name + " @ " + simpleTime(phase.startTime) + "...");
+                printSendResultAndDiff("Buffered vs Socket Messages", pay.bufferedMessages, pay.writtenMessages);
+                printSendResultAndDiff("Buffered vs Socket Bytes   ", pay.bufferedBytes, pay.writtenBytes);
+            }
+
+            InstrumentedSocketDataPort.Stats socket = socketStats ? InstrumentedSocketDataPort.getStats(socketName(sender.label)) : null;
+            if (socket != null) {
+                System.out.println("Socket...");
+                socket.report();
+            }
+            sender.states.report();
+            reportPacing(sender.pacer);
+            if (sender.queueSampler != null) {
+                sender.queueSampler.report(maxMessagesInOutgoingQueue);
+            }
+            if (sender.watchdog != null) {
+                sender.watchdog.report();
+            }
+        }
+    }
+
+    private void writeCsvFiles() {
+        for (Sender sender : senders) {
+            if (timelineCsv != null && sender.sendStats != null) {
+                String fn = senderFileName(timelineCsv, sender);
+                try {
+                    sender.sendStats.getTimeline().writeCsv(fn);
+                    log(sender.label, "Timeline written to %s", fn);
+                }
+                catch (IOException e) {
+                    log(sender.label, "Failed writing timeline to %s", fn, e);
+                }
+            }
+            if (queueSampleCsv != null && sender.queueSampler != null) {
+                String fn = senderFileName(queueSampleCsv, sender);
+                try {
+                    sender.queueSampler.writeCsv(fn);
+                    log(sender.label, "Queue samples written to %s", fn);
+                }
+                catch (IOException e) {
+                    log(sender.label, "Failed writing queue samples to %s", fn, e);
+                }
+            }
+        }
+    }
+
+    // with more than one sender, each sender gets its own file, named with its index
+    private String senderFileName(String fn, Sender sender) {
+        if (numSenders == 1) {
+            return fn;
+        }
+        int dot = fn.lastIndexOf('.');
+        return dot == -1 ? fn + "-" + sender.index : fn.substring(0, dot) + "-" + sender.index + fn.substring(dot);
+    }
+
+    private void reportFaults() {
+        List<FaultEvent> events = new ArrayList<>();
+        for (FaultProxy proxy : proxies) {
+            events.addAll(proxy.getEvents());
+        }
+        if (cluster != null) {
+            events.addAll(cluster.getEvents());
+        }
+        if (events.isEmpty()) {
+            return;
+        }
+        events.sort((e1, e2) -> Long.compare(e1.time, e2.time));
+        System.out.println("\nFAULTS");
+        for (FaultEvent e : events) {
+            System.out.println("  " + e);
+        }
+    }
 
-        System.out.println("After Disconnect...");
-        printSendResultAndDiff("Buffered vs Socket Messages",
-            sendStats.pay2.bufferedMessages, sendStats.pay2.writtenMessages);
-        printSendResultAndDiff("Buffered vs Socket Bytes   ",
-            sendStats.pay2.bufferedBytes, sendStats.pay2.writtenBytes);
+    private void reportPacing(Pacer pacer) {
+        if (pacer == null) {
+            return;
+        }
+        System.out.println("Pacing...");
+        printSendResult("Achieved Rate (per second)", (long)pacer.achievedRate());
+        printSendResult("Permits", pacer.getPermits());
+        printSendResult("Skipped (more than burst behind)", pacer.getSkipped());
+        System.out.println("  Schedule Lag: " + pacer.getLag().summary());
     }
 
     private void printSendResult(String s, Number n) {
@@ -251,20 +728,52 @@ public class CoreMessageLoss {
     // ----------------------------------------------------------------------------------------------------
     // Sender
     // ----------------------------------------------------------------------------------------------------
-    AtomicLong pubId;
-    CmlStatsCollector sendStats;
-    CmlConnectionListener sendCL;
-    CmlErrorListener sendEL;
+    static class Sender {
+        final int index;
+        final String label;
+        final AtomicLong pubId;
+        final MessageIdTracker idTracker;
+        final GapDetector gapDetector;
+        Pacer pacer;
+        final RunStateMachine states;
+        final AtomicInteger terminatesReceived;
+        CmlStatsCollector sendStats;
+        OutgoingQueueSampler queueSampler;
+        WriterWatchdog watchdog;
+        CmlConnectionListener sendCL;
+        CmlErrorListener sendEL;
 
-    private void send() throws IOException, InterruptedException {
-        pubId = new AtomicLong(0);
-        sendStats = new CmlStatsCollector(payloadSize);
+        Sender(int index, String labelSuffix, int payloadSize) {
+            this.index = index;
+            label = TPS_SENDER + labelSuffix;
+            pubId = new AtomicLong(0);
+            idTracker = new MessageIdTracker();
+            gapDetector = new GapDetector("GAP" + labelSuffix, idTracker, payloadSize);
+            states = new RunStateMachine("STATE" + labelSuffix);
+            terminatesReceived = new AtomicInteger();
+        }
+    }
 
-        sendCL = new CmlConnectionListener(TPS_SENDER, servers, false);
-        sendEL = new CmlErrorListener(TPS_SENDER);
+    List<Sender> senders = new ArrayList<>();
 
-        Options options  = new Options.Builder()
-            .servers(servers)
+    private void send(Sender sender) throws IOException, InterruptedException {
+        String label = sender.label;
+        AtomicLong pubId = sender.pubId;
+        BufferTimeline timeline = timelineCsv == null ? null : new BufferTimeline(timelineBucketMillis, timelineBuckets);
+        CmlStatsCollector sendStats = new CmlStatsCollector(payloadSize, "Connected", timeline);
+        CmlConnectionListener sendCL = new CmlConnectionListener(label, connectUrls, false, sendStats, sender.states);
+        CmlErrorListener sendEL = new CmlErrorListener(label);
+        sender.sendStats = sendStats;
+        sender.sendCL = sendCL;
+        sender.sendEL = sendEL;
+        if (watchdogMillis > 0) {
+            // made before connecting so the stats collector stamps every write, started once there is a connection
+            sender.watchdog = new WriterWatchdog(label, watchdogMillis, WriterWatchdog.log(label));
+            sendStats.setWatchdog(sender.watchdog);
+        }
+
+        Options.Builder builder = new Options.Builder()
+            .servers(connectUrls)
             .ignoreDiscoveredServers()
             .noRandomize()
             .connectionTimeout(connectionTimeoutMillis)
@@ -272,91 +781,101 @@ public class CoreMessageLoss {
             .maxMessagesInOutgoingQueue(maxMessagesInOutgoingQueue)
             .statisticsCollector(sendStats)
             .connectionListener(sendCL)
-            .errorListener(sendEL)
-            .build();
+            .errorListener(sendEL);
+        instrumentSocket(builder, label);
+        Options options = builder.build();
 
         try (Connection nc = Nats.connect(options)) {
+            if (queueSampleMillis > 0) {
+                sender.queueSampler = new OutgoingQueueSampler(label, nc, queueSampleMillis).start();
+            }
+            if (sender.watchdog != null) {
+                sender.watchdog.start(nc);
+            }
             byte[] payload = new byte[payloadSize];
             Headers h = new Headers();
+            // the client keeps a reference to the body until the writer has copied it, so stamped bodies
+            // come from a ring with a slot for every message the outgoing queue can hold, plus the one
+            // the writer is copying and the one being published, a slot is never reused while still referenced
+            byte[][] stampedRing = idMode == IdMode.Payload ? new byte[maxMessagesInOutgoingQueue + 2][] : null;
+            int stampedIx = 0;
 
-            long currentSecond = -1;
             long messagesThisSecond = 0;
-            long nextSecondStart = -1;
-            long startNanos = System.nanoTime();
+            Pacer pacer = new Pacer(rateProfile, pacingBurst);
+            sender.pacer = pacer;
+            long nextSecondStart = pacer.getStartNanos() + 1_000_000_000L;
 
             while (nc.getStatus() == Connection.Status.CONNECTED
                 && !sendEL.connectionException.get() && !sendCL.disconnected.get())
             {
+                long intended = pacer.acquire();
+
                 // Check if we've moved to a new second
-                long now = System.nanoTime();
-                if (now >= nextSecondStart) {
-                    if (messagesThisSecond > 0) {
-                        log(TPS_SENDER, "Messages Last Second: " + messagesThisSecond);
-                    }
-                    currentSecond++;
+                if (intended >= nextSecondStart) {
+                    log(label, "Messages Last Second: " + messagesThisSecond);
                     messagesThisSecond = 0;
-                    nextSecondStart = startNanos + ((currentSecond + 1) * 1_000_000_000L);
+                    while (intended >= nextSecondStart) {
+                        nextSecondStart += 1_000_000_000L;
+                    }
                 }
 
-                // Only send if we haven't hit the target for this second
-                if (messagesThisSecond < targetTps) {
-                    try {
-                        h.put(MESSAGE_ID_KEY, pubId.incrementAndGet() + "");
-                        nc.publish(TEST_SUBJECT, h, payload);
-                        messagesThisSecond++;
-
-                        // Calculate sleep time to maintain even distribution
-                        long remainingInSecond = nextSecondStart - System.nanoTime();
-                        long remainingMessages = targetTps - messagesThisSecond;
-                        if (remainingMessages > 0 && remainingInSecond > 0) {
-                            long sleepTime = remainingInSecond / (remainingMessages + 1);
-                            if (sleepTime > 100_000) { // Only sleep if more than 100 microseconds
-                                sleep(sleepTime / 1_000_000, (int) (sleepTime % 1_000_000));
-                            }
+                try {
+                    if (idMode == IdMode.Payload) {
+                        byte[] stamped = stampedRing[stampedIx];
+                        if (stamped == null) {
+                            stamped = stampedRing[stampedIx] = new byte[payloadSize];
                         }
+                        stampedIx = (stampedIx + 1) % stampedRing.length;
+                        stampPayload(stamped, messageId(sender.index, pubId.incrementAndGet()), System.nanoTime(), intended);
+                        nc.publish(testSubject, stamped);
                     }
-                    catch (Exception e) {
-                        log(TPS_SENDER, "Error sending message id %s during test: %s", pubId.get(), e.getMessage());
-                        pubId.decrementAndGet();
+                    else {
+                        h.put(MESSAGE_ID_KEY, messageId(sender.index, pubId.incrementAndGet()) + "");
+                        nc.publish(testSubject, h, payload);
                     }
+                    messagesThisSecond++;
                 }
-                else {
-                    // Wait for next second if we've hit the target for this second
-                    long sleepTime = nextSecondStart - System.nanoTime();
-                    if (sleepTime > 0) {
-                        sleep(sleepTime / 1_000_000, (int) (sleepTime % 1_000_000));
-                    }
+                catch (Exception e) {
+                    log(label, "Error sending message id %s during test: %s", pubId.get(), e.getMessage());
+                    pubId.decrementAndGet();
                 }
             }
 
-            sendStats.pay.debug(TPS_SENDER, "Before Disconnect Payloads");
+            // the phase before the first disconnect, the listener may not have started the disconnect phase yet
+            CmlStatsCollector.Phase beforeDisconnect = null;
+            for (CmlStatsCollector.Phase phase : sendStats.getPhases()) {
+                if (phase.name.startsWith(CmlConnectionListener.DISCONNECT_PHASE)) {
+                    break;
+                }
+                beforeDisconnect = phase;
+            }
+            if (beforeDisconnect != null) {
+                beforeDisconnect.pay.debug(label, "Before Disconnect Payloads");
+            }
 
-            sendStats.startPhase2();
+            // the loop can also end on an error or a status change before the listener is called
+            RunStateMachine states = sender.states;
+            states.fire(RunStateMachine.State.Disconnected);
 
-            while (!sendCL.reconnected.get()) {
-                log(TPS_SENDER, "Waiting for Reconnect");
-                sleep(10);
+            while (!states.await(RunStateMachine.State.Reconnected, 1, TimeUnit.SECONDS)) {
+                log(label, "Waiting for Reconnect");
             }
 
-            log(TPS_SENDER, "Publishing Control Terminate Message");
-            nc.publish(TERMINATE_SUBJECT, null);
+            log(label, "Publishing Control Terminate Message");
+            nc.publish(terminateSubject, Integer.toString(sender.index).getBytes(StandardCharsets.US_ASCII));
+            states.fire(RunStateMachine.State.TerminateSent);
 
-
-            long wait = 30000;
-            while (wait > 0) {
-                sleep(100);
-                int notDone = receivers.size();
-                for (Receiver r : receivers) {
-                    if (r.done.get()) {
-                        notDone--;
-                    }
-                }
-                if (notDone == 0) {
-                    break;
-                }
-                wait -= 100;
+            // drained when every receiver has this sender's terminate, which is behind all its messages
+            if (!states.await(RunStateMachine.State.Drained, 30, TimeUnit.SECONDS)) {
+                log(label, "Not Drained");
+            }
+            if (sender.queueSampler != null) {
+                sender.queueSampler.stop();
+            }
+            if (sender.watchdog != null) {
+                sender.watchdog.stop();
             }
-            log(TPS_SENDER, "Done");
+            log(label, "Done");
         }
     }
 
@@ -364,82 +883,332 @@ public class CoreMessageLoss {
     // Receiver
     // ----------------------------------------------------------------------------------------------------
     static class Receiver {
-        long receivedMessages;
+        final AtomicLong receivedMessages = new AtomicLong();
+        final List<DispatcherStats> dispatcherStats = new ArrayList<>();
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LatencyHistogram correctedLatency = new LatencyHistogram();
         CmlConnectionListener receiveCL;
         CmlErrorListener receiveEL;
-        AtomicBoolean ready = new AtomicBoolean(false);
         AtomicBoolean done = new AtomicBoolean(false);
+        CountDownLatch doneLatch = new CountDownLatch(1);
+        AtomicInteger terminates = new AtomicInteger(0);
+
+        void finish() {
+            done.set(true);
+            doneLatch.countDown();
+        }
     }
 
-    AtomicLong highestMessageId = new AtomicLong(0);
     AtomicLong lastReceive = new AtomicLong(System.currentTimeMillis());
-    LinkedBlockingQueue<Long> messageIdsTrackingQueue = new LinkedBlockingQueue<>();
     List<Receiver> receivers = new ArrayList<>();
+    CountDownLatch receiversReady;
 
     private void receive(int rx) throws IOException, InterruptedException {
         Receiver r = receivers.get(rx);
-        receivers.add(r);
 
         String label = TPS_RECEIVER + "-" + rx;
-        r.receiveCL = new CmlConnectionListener(label, servers, true);
+        r.receiveCL = new CmlConnectionListener(label, connectUrls, true);
         r.receiveEL = new CmlErrorListener(label);
 
-        Options options  = new Options.Builder()
-            .server(servers[rx % 2 == 0 ? 2 : 1])
+        Options.Builder builder  = new Options.Builder()
+            .server(connectUrls[rx % 2 == 0 ? 2 : 1])
             .ignoreDiscoveredServers()
             .connectionTimeout(connectionTimeoutMillis)
+            .receiveBufferSize(receiveBufferSize)
             .statisticsCollector(new NoOpStatistics())
             .connectionListener(r.receiveCL)
-            .errorListener(r.receiveEL)
-            .build();
+            .errorListener(r.receiveEL);
+        if (receiverExecutor != null) {
+            builder.executor(receiverExecutor).useDispatcherWithExecutor();
+        }
+        instrumentSocket(builder, label);
+        Options options = builder.build();
 
         try (Connection nc = Nats.connect(options)) {
-            Dispatcher d = nc.createDispatcher();
+            // one dispatcher handles both subscriptions, or there are N dispatchers
+            // each with its own queue subscription, and one more just for the terminate
+            List<Dispatcher> dispatchers = new ArrayList<>();
 
-            d.subscribe(TEST_SUBJECT, TEST_QUEUE, msg -> {
-                long mid = extractMessageId(msg);
-                messageIdsTrackingQueue.add(mid);
-                highestMessageId.set(Math.max(highestMessageId.get(), mid));
+            MessageHandler handler = msg -> {
+                long mid = extractMessageId(msg, idMode);
+                if (mid >= 0) {
+                    int sx = senderIndex(mid);
+                    if (sx < numSenders) {
+                        senders.get(sx).idTracker.record(sequence(mid));
+                    }
+                }
+                if (idMode == IdMode.Payload) {
+                    long now = System.nanoTime();
+                    r.latency.record(now - extractPayloadSendNanos(msg));
+                    // from when the pacer meant it to go, so time the sender spent behind schedule counts
+                    r.correctedLatency.record(now - extractPayloadIntendedNanos(msg));
+                }
                 lastReceive.set(System.currentTimeMillis());
-                if (++r.receivedMessages == 1) {
+                if (r.receivedMessages.incrementAndGet() == 1) {
                     log(label, "Started Receiving");
                 }
-            });
+            };
 
-            d.subscribe(TERMINATE_SUBJECT, msg -> {
+            MessageHandler terminateHandler = msg -> {
                 log(label, "Received Control - Terminate Message.");
-                r.done.set(true);
-            });
+                int sx = Integer.parseInt(new String(msg.getData(), StandardCharsets.US_ASCII));
+                Sender sender = senders.get(sx);
+                if (receiverDispatchers > 1) {
+                    // on its own dispatcher the terminate can overtake messages still pending on the others,
+                    // the receiver only has every message before it once those are handled
+                    awaitDrained(r.dispatcherStats, 1000);
+                }
+                if (sender.terminatesReceived.incrementAndGet() == numReceivers) {
+                    sender.states.fire(RunStateMachine.State.Drained);
+                }
+                // every sender sends its own terminate, behind its own messages
+                if (r.terminates.incrementAndGet() >= numSenders) {
+                    r.finish();
+                }
+            };
 
-            sleep(50);
-            r.ready.set(true);
+            for (int dx = 0; dx < receiverDispatchers; dx++) {
+                DispatcherStats ds = new DispatcherStats(receiverDispatchers == 1 ? label : label + "-D" + dx);
+                Dispatcher d = nc.createDispatcher();
+                ds.setDispatcher(d);
+                ds.setSubscription(d.subscribe(testSubject, TEST_QUEUE, ds.wrap(handler)));
+                r.dispatcherStats.add(ds);
+                dispatchers.add(d);
+            }
+            if (receiverDispatchers == 1) {
+                dispatchers.get(0).subscribe(terminateSubject, terminateHandler);
+            }
+            else {
+                nc.createDispatcher().subscribe(terminateSubject, terminateHandler);
+            }
+
+            // the round trip makes sure the server has the subscriptions
+            try {
+                nc.flush(Duration.ofMillis(connectionTimeoutMillis));
+            }
+            catch (TimeoutException e) {
+                log(label, "Flush Timeout");
+            }
+            receiversReady.countDown();
             log(label, "READY");
 
 
-            long wait = 30000;
-            while (wait > 0) {
-                sleep(100);
-                if (r.done.get()) {
-                    break;
+            r.doneLatch.await(30000, TimeUnit.MILLISECONDS);
+
+            // with its own dispatcher the terminate can overtake messages still pending on the others
+            awaitDrained(r.dispatcherStats, 1000);
+            log(label, "Done");
+        }
+    }
+
+    // pending alone isn't enough, the dispatcher takes a message off its queue before the handler is done with it
+    private static void awaitDrained(List<DispatcherStats> dispatcherStats, long maxMillis) {
+        long drainUntil = System.currentTimeMillis() + maxMillis;
+        for (DispatcherStats ds : dispatcherStats) {
+            while (!ds.isCaughtUp() && System.currentTimeMillis() < drainUntil) {
+                sleep(1);
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------
+    // Results, valid after run
+    // ----------------------------------------------------------------------------------------------------
+    public long getPublished() {
+        long published = 0;
+        for (Sender sender : senders) {
+            published += sender.pubId.get();
+        }
+        return published;
+    }
+
+    public long getReceived() {
+        long received = 0;
+        for (Sender sender : senders) {
+            received += sender.idTracker.getReceived();
+        }
+        return received;
+    }
+
+    /**
+     * @return messages published that no receiver got, including any after the highest id received
+     */
+    public long getLost() {
+        return Math.max(0, getPublished() - getReceived());
+    }
+
+    public long getLostBytes() {
+        return getLost() * payloadSize;
+    }
+
+    public long getDuplicates() {
+        long duplicates = 0;
+        for (Sender sender : senders) {
+            duplicates += sender.idTracker.getDuplicates();
+        }
+        return duplicates;
+    }
+
+    /**
+     * @return messages published per second while connected, from the first connect to the first disconnect
+     */
+    public double getPublishTps() {
+        double tps = 0;
+        for (Sender sender : senders) {
+            long nanos = sender.states.nanosBetween(RunStateMachine.State.Connected, RunStateMachine.State.Disconnected);
+            if (nanos > 0) {
+                tps += sender.pubId.get() * 1_000_000_000.0 / nanos;
+            }
+        }
+        return tps;
+    }
+
+    /**
+     * @return writes that took longer than InstrumentedSocketDataPort.BLOCKED_WRITE_NANOS, 0 without socket stats
+     */
+    public long getBlockedWrites() {
+        long blocked = 0;
+        if (socketStats) {
+            for (Sender sender : senders) {
+                InstrumentedSocketDataPort.Stats socket = InstrumentedSocketDataPort.getStats(socketName(sender.label));
+                if (socket != null) {
+                    blocked += socket.blockedWrites.get();
                 }
-                wait -= 100;
             }
-            log(label, "Done");
         }
+        return blocked;
+    }
+
+    /**
+     * @return the send buffer the kernel gave the first sender's socket, -1 without socket stats
+     */
+    public int getEffectiveSendBufferSize() {
+        InstrumentedSocketDataPort.Stats socket = socketStats ? InstrumentedSocketDataPort.getStats(socketName(senders.get(0).label)) : null;
+        return socket == null ? -1 : socket.effectiveSendBufferSize.get();
+    }
+
+    /**
+     * @return the receive buffer the kernel gave the first receiver's socket, -1 without socket stats
+     */
+    public int getEffectiveReceiveBufferSize() {
+        InstrumentedSocketDataPort.Stats socket = socketStats ? InstrumentedSocketDataPort.getStats(socketName(TPS_RECEIVER + "-0")) : null;
+        return socket == null ? -1 : socket.effectiveReceiveBufferSize.get();
+    }
+
+    private void instrumentSocket(Options.Builder builder, String label) {
+        if (socketStats) {
+            // the data port finds its stats by connection name, the prefix keeps parallel runs apart
+            builder.connectionName(socketName(label))
+                .dataPortType(InstrumentedSocketDataPort.class.getName());
+        }
+    }
+
+    private String socketName(String label) {
+        return subjectPrefix + label;
+    }
+
+    private void storeResult() {
+        if (resultStore == null) {
+            return;
+        }
+        long gaps = 0;
+        long reconnectNanos = -1;
+        long writerStalls = 0;
+        for (Sender sender : senders) {
+            gaps += sender.gapDetector.getGaps();
+            if (sender.watchdog != null) {
+                writerStalls += sender.watchdog.getStalls().size();
+            }
+            reconnectNanos = Math.max(reconnectNanos, sender.states.nanosBetween(RunStateMachine.State.Disconnected, RunStateMachine.State.Reconnected));
+        }
+        ResultStore.Record r = new ResultStore.Record("cml")
+            .param("tps", targetTps)
+            .param("payload.size", payloadSize)
+            .param("send.buffer.size", sendBufferSize)
+            .param("receive.buffer.size", receiveBufferSize)
+            .param("max.outgoing.queue", maxMessagesInOutgoingQueue)
+            .param("receivers", numReceivers)
+            .param("receiver.threads", receiverThreads)
+            .param("receiver.dispatchers", receiverDispatchers)
+            .param("senders", numSenders)
+            .param("id.mode", idMode)
+            .param("pacing", pacing)
+            .param("faults", faultScript.isEmpty() ? "none" : faultScript.steps)
+            .param("local.cluster", localCluster)
+            .metric("published", getPublished())
+            .metric("received", getReceived())
+            .metric("lost", getLost())
+            .metric("lost bytes", getLostBytes())
+            .metric("duplicates", getDuplicates())
+            .metric("live gaps", gaps)
+            .metric("publish tps", getPublishTps());
+        if (reconnectNanos >= 0) {
+            r.metric("reconnect millis", reconnectNanos / 1_000_000.0);
+        }
+        if (watchdogMillis > 0) {
+            r.param("watchdog.millis", watchdogMillis).metric("writer stalls", writerStalls);
+        }
+        if (socketStats) {
+            LatencyHistogram writeNanos = new LatencyHistogram();
+            long blocked = 0;
+            for (Sender sender : senders) {
+                InstrumentedSocketDataPort.Stats socket = InstrumentedSocketDataPort.getStats(socketName(sender.label));
+                if (socket != null) {
+                    writeNanos.add(socket.writeNanos);
+                    blocked += socket.blockedWrites.get();
+                }
+            }
+            r.metric("effective send buffer", getEffectiveSendBufferSize())
+                .metric("effective receive buffer", getEffectiveReceiveBufferSize())
+                .metric("socket writes", writeNanos.getTotalCount())
+                .metric("socket blocked writes", blocked)
+                .metric("socket write p99 millis", writeNanos.getValueAtPercentile(99) / 1_000_000.0)
+                .metric("socket write max millis", writeNanos.getMax() / 1_000_000.0);
+        }
+        new ResultStore(resultStore).appendQuietly(r);
     }
 
     // ----------------------------------------------------------------------------------------------------
     // Helpers
     // ----------------------------------------------------------------------------------------------------
+    private String highestMessageIds() {
+        if (numSenders == 1) {
+            return Long.toString(senders.get(0).idTracker.getHighest());
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Sender sender : senders) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(sender.idTracker.getHighest());
+        }
+        return sb.toString();
+    }
+
     private void reportSocketBufferSize() {
         try {
             Socket socket = new Socket();
-            log("TPS", "Socket Receive Buffer: %s bytes", socket.getReceiveBufferSize());
-            log("TPS", "Socket Send Buffer: %s bytes", socket.getSendBufferSize());
+            log("TPS", "Default Socket Receive Buffer: %s bytes", socket.getReceiveBufferSize());
+            log("TPS", "Default Socket Send Buffer: %s bytes", socket.getSendBufferSize());
             socket.close();
         }
         catch (IOException ioe) {
             log("TPS", "Exception Reporting Socket Buffer Sizes", ioe);
         }
     }
+
+    private void reportEffectiveSocketBufferSizes() {
+        if (!socketStats) {
+            // only the socket stats data port can see the connection's socket
+            reportSocketBufferSize();
+            return;
+        }
+        for (Sender sender : senders) {
+            InstrumentedSocketDataPort.Stats socket = InstrumentedSocketDataPort.getStats(socketName(sender.label));
+            if (socket != null) {
+                log(sender.label, "Effective Socket Send Buffer: %s bytes (requested %s)", socket.effectiveSendBufferSize.get(), sendBufferSize);
+            }
+        }
+        log(TPS_RECEIVER, "Effective Socket Receive Buffer: %s bytes (requested %s)", getEffectiveReceiveBufferSize(), receiveBufferSize);
+    }
 }
@@ -0,0 +1,112 @@
+// Copyright (c) 2025 Synadia Communications Inc. All Rights Reserved.
+// See LICENSE and NOTICE file for details.
+
+package io.synadia.tuning.cml;
+
+import io.nats.client.Dispatcher;
+import io.nats.client.MessageHandler;
+import io.nats.client.Subscription;
+import io.synadia.utils.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    Counts the messages a dispatcher handled and how long its handler took.
+    Busy is the time spent in the handler over the time from the first message to the last.
+    A dispatcher that is busy close to 100% of the time is saturated, messages wait in its
+    pending queue and, when that is full, are dropped by the client, which looks just like loss on the network.
+    A message leaves the pending queue before its handler runs, so the dispatcher is only caught up
+    once the handled count, counted after the handler returns, reaches the subscription's delivered count.
+ */
+public class DispatcherStats {
+    public final String label;
+    private final LongAdder messages;
+    private final LongAdder handlerNanos;
+    private final LatencyHistogram handlerTime;
+    private final AtomicLong firstNanos;
+    private volatile long lastNanos;
+    private Dispatcher dispatcher;
+    private Subscription subscription;
+
+    public DispatcherStats(String label) {
+        this.label = label;
+        messages = new LongAdder();
+        handlerNanos = new LongAdder();
+        handlerTime = new LatencyHistogram();
+        firstNanos = new AtomicLong();
+    }
+
+    /**
+     * Wrap a handler so every call to it is counted and timed
+     */
+    public MessageHandler wrap(MessageHandler handler) {
+        return msg -> {
+            long start = System.nanoTime();
+            firstNanos.compareAndSet(0, start);
+            try {
+                handler.onMessage(msg);
+            }
+            finally {
+                long end = System.nanoTime();
+                long elapsed = end - start;
+                messages.increment();
+                handlerNanos.add(elapsed);
+                handlerTime.record(elapsed);
+                lastNanos = end;
+            }
+        };
+    }
+
+    public void setDispatcher(Dispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    public void setSubscription(Subscription subscription) {
+        this.subscription = subscription;
+    }
+
+    /**
+     * @return true when nothing is pending and every message delivered to the wrapped handler has been handled
+     */
+    public boolean isCaughtUp() {
+        return getPending() == 0 && (subscription == null || getMessages() >= subscription.getDeliveredCount());
+    }
+
+    public long getMessages() {
+        return messages.sum();
+    }
+
+    public LatencyHistogram getHandlerTime() {
+        return handlerTime;
+    }
+
+    public long getActiveNanos() {
+        long first = firstNanos.get();
+        return first == 0 ? 0 : lastNanos - first;
+    }
+
+    /**
+     * @return messages per second from the first message to the last
+     */
+    public double getRate() {
+        long active = getActiveNanos();
+        return active == 0 ? 0 : getMessages() * 1_000_000_000.0 / active;
+    }
+
+    /**
+     * @return the percent of the active time spent in the handler
+     */
+    public double getBusyPercent() {
+        long active = getActiveNanos();
+        return active == 0 ? 0 : Math.min(100, handlerNanos.sum() * 100.0 / active);
+    }
+
+    public long getPending() {
+        return dispatcher == null ? 0 : dispatcher.getPendingMessageCount();
+    }
+
+    public long getDropped() {
+        return dispatcher == null ? 0 : dispatcher.getDroppedCount();
+    }
+}
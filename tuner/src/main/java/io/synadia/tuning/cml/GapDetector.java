@@ -0,0 +1,118 @@
+// Copyright (c) 2025 Synadia Communications Inc. All Rights Reserved.
+// See LICENSE and NOTICE file for details.
+
+package io.synadia.tuning.cml;
+
+import io.synadia.utils.Debug;
+
+import static io.synadia.utils.Debug.format3;
+
+/*
+    Finds gaps while the test is running. Each check only looks at ids between the
+    watermark and the highest id that had been received as of the previous check,
+    so a message gets one full window to arrive out of order before its absence
+    is considered a gap. Memory is fixed, the ids themselves live in the MessageIdTracker.
+ */
+public class GapDetector implements Runnable {
+    private static final int FRONTIER_HISTORY = 1024;
+
+    private final String label;
+    private final MessageIdTracker tracker;
+    private final int payloadSize;
+
+    // (time, highest) at each check, used to estimate when a gap happened
+    private final long[] frontierTimes;
+    private final long[] frontierIds;
+    private int frontierCount;
+
+    private long watermark;
+    private long confirmLimit;
+    private long gaps;
+    private long missing;
+
+    public GapDetector(String label, MessageIdTracker tracker, int payloadSize) {
+        this.label = label;
+        this.tracker = tracker;
+        this.payloadSize = payloadSize;
+        frontierTimes = new long[FRONTIER_HISTORY];
+        frontierIds = new long[FRONTIER_HISTORY];
+        watermark = -1;
+        confirmLimit = -1;
+    }
+
+    @Override
+    public synchronized void run() {
+        try {
+            check(System.currentTimeMillis(), tracker.getHighest());
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Confirm everything that has been received, used once the run is over.
+     */
+    public synchronized void finish() {
+        long highest = tracker.getHighest();
+        check(System.currentTimeMillis(), highest);
+        check(System.currentTimeMillis(), highest);
+    }
+
+    public synchronized long getGaps() {
+        return gaps;
+    }
+
+    public synchronized long getMissing() {
+        return missing;
+    }
+
+    private void check(long now, long highest) {
+        if (watermark == -1) {
+            watermark = tracker.getLowest();
+        }
+        long limit = confirmLimit;
+        if (watermark != -1 && limit > watermark) {
+            long[] next = new long[]{limit + 1};
+            tracker.forEachMissingRange(watermark, limit, (start, length) -> {
+                if (start + length > limit) {
+                    // still open at the edge of the window, look again next time
+                    next[0] = start;
+                }
+                else {
+                    report(now, start, length);
+                }
+            });
+            watermark = next[0];
+        }
+        confirmLimit = highest;
+
+        frontierTimes[frontierCount % FRONTIER_HISTORY] = now;
+        frontierIds[frontierCount % FRONTIER_HISTORY] = highest;
+        frontierCount++;
+    }
+
+    private void report(long now, long start, long length) {
+        gaps++;
+        missing += length;
+        long around = frontierTimeFor(start);
+        Debug.log(label, "Gap Detected",
+            "Start Id: %s", format3(start),
+            "Length: %s", format3(length),
+            "Bytes (Approximate): %s", format3(length * payloadSize),
+            "Around: %s", around == -1 ? "unknown" : Debug.simpleTime(around),
+            "Confirmed: %s", Debug.simpleTime(now));
+    }
+
+    // the last check where the start id had not yet been passed
+    private long frontierTimeFor(long id) {
+        int oldest = Math.max(0, frontierCount - FRONTIER_HISTORY);
+        for (int x = frontierCount - 1; x >= oldest; x--) {
+            int ix = x % FRONTIER_HISTORY;
+            if (frontierIds[ix] < id) {
+                return frontierTimes[ix];
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,199 @@
+// Copyright (c) 2025 Synadia Communications Inc. All Rights Reserved.
+// See LICENSE and NOTICE file for details.
+
+package io.synadia.tuning.cml;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+    Lock free record of which message ids have been received.
+    Ids are kept as bits in segments of 64k ids. A segment is created the first time
+    an id in its range is seen, after that recording an id is a single CAS on a long.
+    Missing ranges are found by scanning the words, so no sorting is ever needed.
+ */
+public class MessageIdTracker {
+    public interface RangeConsumer {
+        void accept(long start, long length);
+    }
+
+    static final int SEGMENT_SHIFT = 16;
+    static final int SEGMENT_BITS = 1 << SEGMENT_SHIFT;
+    static final int WORDS_PER_SEGMENT = SEGMENT_BITS / 64;
+    static final long DEFAULT_MAX_ID = (1L << 32) - 1;
+
+    private final long maxId;
+    private final AtomicReferenceArray<AtomicLongArray> segments;
+    private final AtomicLong received;
+    private final AtomicLong duplicates;
+    private final AtomicLong lowest;
+    private final AtomicLong highest;
+
+    public MessageIdTracker() {
+        this(DEFAULT_MAX_ID);
+    }
+
+    public MessageIdTracker(long maxId) {
+        if (maxId < 1) {
+            throw new IllegalArgumentException("Max id must be positive.");
+        }
+        this.maxId = maxId;
+        segments = new AtomicReferenceArray<>((int)((maxId >>> SEGMENT_SHIFT) + 1));
+        received = new AtomicLong();
+        duplicates = new AtomicLong();
+        lowest = new AtomicLong(Long.MAX_VALUE);
+        highest = new AtomicLong(-1);
+    }
+
+    /**
+     * Record that an id was received.
+     * @param id the message id
+     * @return true if this is the first time the id was recorded, false if it was
+     * a duplicate or out of the range this tracker can hold
+     */
+    public boolean record(long id) {
+        if (id < 0 || id > maxId) {
+            return false;
+        }
+        AtomicLongArray words = segment((int)(id >>> SEGMENT_SHIFT));
+        int wx = (int)(id >>> 6) & (WORDS_PER_SEGMENT - 1);
+        long mask = 1L << (id & 63);
+        long current;
+        do {
+            current = words.get(wx);
+            if ((current & mask) != 0) {
+                duplicates.incrementAndGet();
+                return false;
+            }
+        } while (!words.compareAndSet(wx, current, current | mask));
+
+        received.incrementAndGet();
+        updateMin(lowest, id);
+        updateMax(highest, id);
+        return true;
+    }
+
+    public boolean contains(long id) {
+        if (id < 0 || id > maxId) {
+            return false;
+        }
+        AtomicLongArray words = segments.get((int)(id >>> SEGMENT_SHIFT));
+        return words != null && (words.get((int)(id >>> 6) & (WORDS_PER_SEGMENT - 1)) & (1L << (id & 63))) != 0;
+    }
+
+    public long getReceived() {
+        return received.get();
+    }
+
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    public long getLowest() {
+        long l = lowest.get();
+        return l == Long.MAX_VALUE ? -1 : l;
+    }
+
+    public long getHighest() {
+        return highest.get();
+    }
+
+    /**
+     * Walk every range of ids that are missing between the lowest and highest received id
+     * @param consumer receives the start id and the length of each missing range
+     */
+    public void forEachMissingRange(RangeConsumer consumer) {
+        long lo = getLowest();
+        if (lo != -1) {
+            forEachMissingRange(lo, getHighest(), consumer);
+        }
+    }
+
+    /**
+     * Walk every range of ids that are missing in the inclusive range from to
+     * @param from the first id to check
+     * @param to the last id to check
+     * @param consumer receives the start id and the length of each missing range
+     */
+    public void forEachMissingRange(long from, long to, RangeConsumer consumer) {
+        from = Math.max(0, from);
+        to = Math.min(maxId, to);
+        long gapStart = -1;
+        long id = from;
+        while (id <= to) {
+            AtomicLongArray words = segments.get((int)(id >>> SEGMENT_SHIFT));
+            if (words == null) {
+                // nothing at all was received in this segment
+                if (gapStart == -1) {
+                    gapStart = id;
+                }
+                id = ((id >>> SEGMENT_SHIFT) + 1) << SEGMENT_SHIFT;
+                continue;
+            }
+
+            int bit = (int)(id & 63);
+            long word = words.get((int)(id >>> 6) & (WORDS_PER_SEGMENT - 1)) >>> bit;
+            long wordEnd = Math.min(to + 1, (id | 63) + 1);
+            while (id < wordEnd) {
+                if (gapStart == -1) {
+                    // skip over the run of received ids
+                    int run = Long.numberOfTrailingZeros(~word);
+                    id += run;
+                    word = run == 64 ? 0 : word >>> run;
+                    if (id < wordEnd) {
+                        gapStart = id;
+                    }
+                }
+                else {
+                    // skip over the run of missing ids
+                    int run = word == 0 ? 64 : Long.numberOfTrailingZeros(word);
+                    id += run;
+                    word = run == 64 ? 0 : word >>> run;
+                    if (id < wordEnd) {
+                        consumer.accept(gapStart, id - gapStart);
+                        gapStart = -1;
+                    }
+                }
+            }
+            id = wordEnd;
+        }
+        if (gapStart != -1) {
+            consumer.accept(gapStart, Math.min(id, to + 1) - gapStart);
+        }
+    }
+
+    public long countMissing() {
+        long lo = getLowest();
+        if (lo == -1) {
+            return 0;
+        }
+        return getHighest() - lo + 1 - received.get();
+    }
+
+    private AtomicLongArray segment(int sx) {
+        AtomicLongArray words = segments.get(sx);
+        if (words == null) {
+            AtomicLongArray created = new AtomicLongArray(WORDS_PER_SEGMENT);
+            if (segments.compareAndSet(sx, null, created)) {
+                return created;
+            }
+            words = segments.get(sx);
+        }
+        return words;
+    }
+
+    private static void updateMin(AtomicLong a, long value) {
+        long current = a.get();
+        while (value < current && !a.compareAndSet(current, value)) {
+            current = a.get();
+        }
+    }
+
+    private static void updateMax(AtomicLong a, long value) {
+        long current = a.get();
+        while (value > current && !a.compareAndSet(current, value)) {
+            current = a.get();
+        }
+    }
+}
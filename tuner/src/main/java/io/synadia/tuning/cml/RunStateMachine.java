@@ -0,0 +1,119 @@
+// Copyright (c) 2025 Synadia Communications Inc. All Rights Reserved.
+// See LICENSE and NOTICE file for details.
+
+package io.synadia.tuning.cml;
+
+import io.synadia.utils.Debug;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static io.synadia.utils.Debug.simpleTime;
+
+/*
+    The states a sender goes through in a run. States are fired by whoever sees them first,
+    the connection listener for connect, disconnect and reconnect, the sender for the terminate,
+    and the receivers' control subscriptions for the drain. Waiting for a state is a latch, not a polling loop,
+    and every transition is stamped with System.nanoTime() when it is fired, so the time between states
+    is measured, not rounded to a sleep interval. A state can fire more than once, for instance a disconnect
+    every outage, every firing is kept, but latches and durations use the first one.
+ */
+public class RunStateMachine {
+    public enum State {
+        Connected,
+        Disconnected,
+        Reconnected,
+        TerminateSent,
+        Drained
+    }
+
+    public static class Transition {
+        public final State state;
+        public final long nanos;
+        public final long time;
+
+        Transition(State state) {
+            this.state = state;
+            nanos = System.nanoTime();
+            time = System.currentTimeMillis();
+        }
+    }
+
+    private final String label;
+    private final Map<State, CountDownLatch> latches;
+    private final Map<State, Transition> firsts;
+    private final List<Transition> transitions;
+
+    public RunStateMachine(String label) {
+        this.label = label;
+        latches = new EnumMap<>(State.class);
+        for (State s : State.values()) {
+            latches.put(s, new CountDownLatch(1));
+        }
+        firsts = new EnumMap<>(State.class);
+        transitions = new ArrayList<>();
+    }
+
+    public void fire(State state) {
+        Transition t = new Transition(state);
+        synchronized (transitions) {
+            transitions.add(t);
+            if (firsts.containsKey(state)) {
+                return;
+            }
+            firsts.put(state, t);
+        }
+        Debug.log(label, "State -> %s", state);
+        latches.get(state).countDown();
+    }
+
+    public boolean reached(State state) {
+        return latches.get(state).getCount() == 0;
+    }
+
+    public boolean await(State state, long timeout, TimeUnit unit) throws InterruptedException {
+        return latches.get(state).await(timeout, unit);
+    }
+
+    /**
+     * @return the nanos from the first time one state was fired to the first time another was, -1 if either was not
+     */
+    public long nanosBetween(State from, State to) {
+        synchronized (transitions) {
+            Transition f = firsts.get(from);
+            Transition t = firsts.get(to);
+            return f == null || t == null ? -1 : t.nanos - f.nanos;
+        }
+    }
+
+    public List<Transition> getTransitions() {
+        synchronized (transitions) {
+            return new ArrayList<>(transitions);
+        }
+    }
+
+    public void report() {
+        List<Transition> list = getTransitions();
+        if (list.isEmpty()) {
+            return;
+        }
+        long start = list.get(0).nanos;
+        System.out.println("States...");
+        for (Transition t : list) {
+            System.out.println(String.format("  %-13s @ %s  +%.3f ms", t.state, simpleTime(t.time), (t.nanos - start) / 1_000_000.0));
+        }
+        printBetween("Reconnect Time", State.Disconnected, State.Reconnected);
+        printBetween("Drain Time", State.TerminateSent, State.Drained);
+    }
+
+    private void printBetween(String name, State from, State to) {
+        long nanos = nanosBetween(from, to);
+        if (nanos >= 0) {
+            System.out.println(String.format("  %-13s : %.3f ms", name, nanos / 1_000_000.0));
+        }
+    }
+}
@@ -0,0 +1,18 @@
+// Copyright (c) 2025 Synadia Communications Inc. All Rights Reserved.
+// See LICENSE and NOTICE file for details.
+
+package io.synadia.tuning.cml;
+
+public enum ThreadMode {
+    Platform,
+    Virtual;
+
+    public static ThreadMode parse(String s) {
+        for (ThreadMode m : values()) {
+            if (m.name().equalsIgnoreCase(s.trim())) {
+                return m;
+            }
+        }
+        throw new IllegalArgumentException("Invalid thread mode: " + s);
+    }
+}
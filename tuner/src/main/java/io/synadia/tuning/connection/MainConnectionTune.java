@@ -14,51 +14,435 @@ import io.nats.client.ConnectionListener;
 import io.nats.client.Nats;
 import io.nats.client.Options;
 import io.nats.client.impl.NoOpStatistics;
+import io.synadia.utils.EnqueueStamps;
+import io.synadia.utils.LatencyHistogram;
+import io.synadia.utils.OutgoingQueueSampler;
+import io.synadia.utils.PropertyUtils;
+import io.synadia.utils.ResidencyFifo;
+import io.synadia.utils.ResultStore;
+import io.synadia.utils.StallDetector;
+import io.synadia.utils.WriterWatchdog;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static io.nats.client.ForceReconnectOptions.FORCE_CLOSE_INSTANCE;
+import static io.synadia.utils.ArgumentUtils.*;
+import static io.synadia.utils.Debug.log;
+import static io.synadia.utils.Debug.stringify;
 
+/*
+    Publishes to one connection for a bounded time, watching every message's residency, the time from
+    the message being published, through its wait in the outgoing queue, to the buffer holding it being written to the socket.
+    A write whose oldest message waited longer than the threshold is reported and can force a reconnect,
+    or, with the stall detector, only a sustained stall forces a reconnect.
+    The oldest message's wait is the write's latency. Every interval the interval's write latency
+    percentiles are printed, so the tail stalls an average hides show up as they happen.
+    At the end prints the throughput, the full write latency and residency distributions and keeps the result,
+    so the run can be repeated across configurations against a local server.
+    Arguments come from connection.application.properties unless props=<file> is given, then the command line.
+ */
 public class MainConnectionTune {
     static final long NANOS_PER_MILLI = 1_000_000;
+    static final String LABEL = "TUNE";
 
-    static final String[] ServerBootstrap = new String[]{"nats://localhost:4222"};
-    static final int PayloadSize = 1000;
-    static final int JitterMs = 10;
-    static final long ConnectionTimeoutMs = 2000; // Options.DEFAULT_CONNECTION_TIMEOUT = 2 seconds
-    static final long SocketWriteTimeoutMs = 500; // Options.DEFAULT_SOCKET_WRITE_TIMEOUT = 1 minute
-    static final int MaxMessagesInOutgoingQueue = 5000; // Options.DEFAULT_MAX_MESSAGES_IN_OUTGOING_QUEUE = 5000 [messages]
-    static final int BufferSizeInBytes = 16 * 1024; // Options.DEFAULT_BUFFER_SIZE = 64k (64 * 1024)
-    static final long StatisticsThresholdMillis = 1;
+    private static final String KEY_PROPS = "props";
+    private static final String[] KEYS_SERVERS = new String[]{"servers", "s"};
+    private static final String[] KEYS_SUBJECT = new String[]{"subject", "sj"};
+    private static final String[] KEYS_PAYLOAD_SIZE = new String[]{"payload.size", "p"};
+    private static final String[] KEYS_JITTER_MILLIS = new String[]{"jitter.millis", "j"};
+    private static final String[] KEYS_DURATION_SECONDS = new String[]{"duration.seconds", "d"};
+    private static final String[] KEYS_CONNECTION_TIMEOUT_MILLIS = new String[]{"connection.timeout.millis", "c"};
+    private static final String[] KEYS_SOCKET_WRITE_TIMEOUT_MILLIS = new String[]{"socket.write.timeout.millis", "w"};
+    private static final String[] KEYS_MAX_OUTGOING_QUEUE = new String[]{"max.outgoing.queue", "mq"};
+    private static final String[] KEYS_BUFFER_SIZE = new String[]{"buffer.size", "b"};
+    private static final String[] KEYS_THRESHOLD_MILLIS = new String[]{"threshold.millis", "th"};
+    private static final String[] KEYS_FORCE_RECONNECT = new String[]{"force.reconnect", "fr"};
+    private static final String[] KEYS_REPORT_EVERY = new String[]{"report.every", "re"};
+    private static final String[] KEYS_INTERVAL_MILLIS = new String[]{"interval.millis", "im"};
+    private static final String[] KEYS_STALL_DETECTOR = new String[]{"stall.detector", "sd"};
+    private static final String[] KEYS_STALL_LOW_MILLIS = new String[]{"stall.low.millis", "sl"};
+    private static final String[] KEYS_STALL_SUSTAIN_MILLIS = new String[]{"stall.sustain.millis", "su"};
+    private static final String[] KEYS_STALL_COOLDOWN_MILLIS = new String[]{"stall.cooldown.millis", "sc"};
+    private static final String[] KEYS_STALL_HARD_LIMIT_MILLIS = new String[]{"stall.hard.limit.millis", "sh"};
+    private static final String[] KEYS_WATCHDOG_MILLIS = new String[]{"watchdog.millis", "wd"};
+    private static final String[] KEYS_QUEUE_SAMPLE_MILLIS = new String[]{"queue.sample.millis", "qs"};
+    private static final String[] KEYS_QUEUE_SAMPLE_CSV = new String[]{"queue.sample.csv", "qc"};
+    private static final String[] KEYS_RESULT_STORE = new String[]{"result.store", "rs"};
 
-    @SuppressWarnings({"InfiniteLoopStatement", "BusyWait"})
-    public static void main(String[] args) throws InterruptedException, IOException {
-        CustomStatisticsCollector statisticsCollector = new CustomStatisticsCollector();
+    // arguments
+    final String[] servers;
+    final String subject;
+    final int payloadSize;
+    final long jitterMillis;
+    final long durationSeconds;
+    final long connectionTimeoutMillis;
+    final long socketWriteTimeoutMillis;
+    final int maxMessagesInOutgoingQueue;
+    final int bufferSize;
+    final long thresholdMillis;
+    final boolean forceReconnect;
+    final int reportEvery;
+    final long intervalMillis;
+    final boolean stallDetector;
+    final long stallLowMillis;
+    final long stallSustainMillis;
+    final long stallCooldownMillis;
+    final long stallHardLimitMillis;
+    final long watchdogMillis;
+    final long queueSampleMillis;
+    final String queueSampleCsv;
+    final String resultStore;
+
+    // per run
+    CustomStatisticsCollector statisticsCollector;
+    OutgoingQueueSampler sampler;
+    ScheduledExecutorService intervalReporter;
+    LatencyHistogram previousWriteLatency = new LatencyHistogram();
+    long startNanos;
+    long endNanos;
+    final AtomicBoolean finished = new AtomicBoolean();
+
+    public static void main(String[] args) throws Exception {
+        new MainConnectionTune(args).run();
+    }
+
+    public MainConnectionTune(String[] args) throws IOException {
+        // props will come from connection.application.properties unless props=<> is on the command line
+        String propsFile = getArg(args, "connection.application.properties", KEY_PROPS);
+        Properties props = PropertyUtils.loadProperties(propsFile);
+
+        String _servers = getProperty(props, "nats://localhost:4222", KEYS_SERVERS[0]);
+        String _subject = getProperty(props, "subject", KEYS_SUBJECT[0]);
+        int _payloadSize = getIntProperty(props, 1000, KEYS_PAYLOAD_SIZE[0]);
+        long _jitterMillis = getLongProperty(props, 10, KEYS_JITTER_MILLIS[0]);
+        long _durationSeconds = getLongProperty(props, 60, KEYS_DURATION_SECONDS[0]);
+        long _connectionTimeoutMillis = getLongProperty(props, 2000, KEYS_CONNECTION_TIMEOUT_MILLIS[0]);
+        long _socketWriteTimeoutMillis = getLongProperty(props, 500, KEYS_SOCKET_WRITE_TIMEOUT_MILLIS[0]);
+        int _maxOutgoingQueue = getIntProperty(props, 5000, KEYS_MAX_OUTGOING_QUEUE[0]);
+        int _bufferSize = getIntProperty(props, 16 * 1024, KEYS_BUFFER_SIZE[0]);
+        long _thresholdMillis = getLongProperty(props, 1, KEYS_THRESHOLD_MILLIS[0]);
+        String _forceReconnect = getProperty(props, "true", KEYS_FORCE_RECONNECT[0]);
+        int _reportEvery = getIntProperty(props, 0, KEYS_REPORT_EVERY[0]);
+        long _intervalMillis = getLongProperty(props, 1000, KEYS_INTERVAL_MILLIS[0]);
+        String _stallDetector = getProperty(props, "false", KEYS_STALL_DETECTOR[0]);
+        long _stallLowMillis = getLongProperty(props, -1, KEYS_STALL_LOW_MILLIS[0]);
+        long _stallSustainMillis = getLongProperty(props, 250, KEYS_STALL_SUSTAIN_MILLIS[0]);
+        long _stallCooldownMillis = getLongProperty(props, 30_000, KEYS_STALL_COOLDOWN_MILLIS[0]);
+        long _stallHardLimitMillis = getLongProperty(props, 0, KEYS_STALL_HARD_LIMIT_MILLIS[0]);
+        long _watchdogMillis = getLongProperty(props, 0, KEYS_WATCHDOG_MILLIS[0]);
+        long _queueSampleMillis = getLongProperty(props, 1, KEYS_QUEUE_SAMPLE_MILLIS[0]);
+        String _queueSampleCsv = getProperty(props, null, KEYS_QUEUE_SAMPLE_CSV[0]);
+        String _resultStore = getProperty(props, ResultStore.DEFAULT_FILE, KEYS_RESULT_STORE[0]);
+
+        // command line overrides
+        _servers = getArg(args, _servers, KEYS_SERVERS);
+        _subject = getArg(args, _subject, KEYS_SUBJECT);
+        _payloadSize = getIntArg(args, _payloadSize, KEYS_PAYLOAD_SIZE);
+        _jitterMillis = getLongArg(args, _jitterMillis, KEYS_JITTER_MILLIS);
+        _durationSeconds = getLongArg(args, _durationSeconds, KEYS_DURATION_SECONDS);
+        _connectionTimeoutMillis = getLongArg(args, _connectionTimeoutMillis, KEYS_CONNECTION_TIMEOUT_MILLIS);
+        _socketWriteTimeoutMillis = getLongArg(args, _socketWriteTimeoutMillis, KEYS_SOCKET_WRITE_TIMEOUT_MILLIS);
+        _maxOutgoingQueue = getIntArg(args, _maxOutgoingQueue, KEYS_MAX_OUTGOING_QUEUE);
+        _bufferSize = getIntArg(args, _bufferSize, KEYS_BUFFER_SIZE);
+        _thresholdMillis = getLongArg(args, _thresholdMillis, KEYS_THRESHOLD_MILLIS);
+        _forceReconnect = getArg(args, _forceReconnect, KEYS_FORCE_RECONNECT);
+        _reportEvery = getIntArg(args, _reportEvery, KEYS_REPORT_EVERY);
+        _intervalMillis = getLongArg(args, _intervalMillis, KEYS_INTERVAL_MILLIS);
+        _stallDetector = getArg(args, _stallDetector, KEYS_STALL_DETECTOR);
+        _stallLowMillis = getLongArg(args, _stallLowMillis, KEYS_STALL_LOW_MILLIS);
+        _stallSustainMillis = getLongArg(args, _stallSustainMillis, KEYS_STALL_SUSTAIN_MILLIS);
+        _stallCooldownMillis = getLongArg(args, _stallCooldownMillis, KEYS_STALL_COOLDOWN_MILLIS);
+        _stallHardLimitMillis = getLongArg(args, _stallHardLimitMillis, KEYS_STALL_HARD_LIMIT_MILLIS);
+        _watchdogMillis = getLongArg(args, _watchdogMillis, KEYS_WATCHDOG_MILLIS);
+        _queueSampleMillis = getLongArg(args, _queueSampleMillis, KEYS_QUEUE_SAMPLE_MILLIS);
+        _queueSampleCsv = getArg(args, _queueSampleCsv, KEYS_QUEUE_SAMPLE_CSV);
+        _resultStore = getArg(args, _resultStore, KEYS_RESULT_STORE);
+
+        //noinspection DataFlowIssue
+        servers = _servers.split(",");
+        subject = _subject;
+        payloadSize = _payloadSize;
+        jitterMillis = _jitterMillis;
+        if (jitterMillis < 0) {
+            throw new IllegalArgumentException("Jitter millis cannot be negative");
+        }
+        durationSeconds = _durationSeconds;
+        connectionTimeoutMillis = _connectionTimeoutMillis;
+        socketWriteTimeoutMillis = _socketWriteTimeoutMillis;
+        maxMessagesInOutgoingQueue = _maxOutgoingQueue;
+        bufferSize = _bufferSize;
+        thresholdMillis = _thresholdMillis;
+        //noinspection DataFlowIssue
+        forceReconnect = Boolean.parseBoolean(_forceReconnect);
+        reportEvery = _reportEvery;
+        intervalMillis = _intervalMillis;
+        //noinspection DataFlowIssue
+        stallDetector = Boolean.parseBoolean(_stallDetector);
+        stallLowMillis = _stallLowMillis; // -1 means half the threshold
+        stallSustainMillis = _stallSustainMillis;
+        stallCooldownMillis = _stallCooldownMillis;
+        stallHardLimitMillis = _stallHardLimitMillis;
+        watchdogMillis = _watchdogMillis;
+        queueSampleMillis = _queueSampleMillis;
+        queueSampleCsv = _queueSampleCsv;
+        if (queueSampleCsv != null && queueSampleMillis < 1) {
+            throw new IllegalArgumentException("Queue sample csv requires queue.sample.millis");
+        }
+        // none means do not keep the result
+        resultStore = "none".equalsIgnoreCase(_resultStore) ? null : _resultStore;
+
+        log(LABEL, "----- Application Options -----");
+        log(LABEL, "Servers", servers);
+        log(LABEL, "Subject", subject);
+        log(LABEL, "Payload Size", payloadSize);
+        log(LABEL, "Jitter Millis", jitterMillis);
+        log(LABEL, "Duration Seconds", durationSeconds == 0 ? "Until Stopped" : durationSeconds);
+        log(LABEL, "Connection Timeout Millis", connectionTimeoutMillis);
+        log(LABEL, "Socket Write Timeout Millis", socketWriteTimeoutMillis);
+        log(LABEL, "Max Messages In Outgoing Queue", maxMessagesInOutgoingQueue);
+        log(LABEL, "Buffer Size", bufferSize);
+        log(LABEL, "Threshold Millis", thresholdMillis);
+        log(LABEL, "Force Reconnect", forceReconnect);
+        log(LABEL, "Report Every", reportEvery == 0 ? "Never" : reportEvery);
+        log(LABEL, "Interval Millis", intervalMillis == 0 ? "Never" : intervalMillis);
+        log(LABEL, "Stall Detector", stallDetector);
+        if (stallDetector) {
+            log(LABEL, "Stall Low Millis", stallLowMillis < 0 ? "Half Of Threshold" : stallLowMillis);
+            log(LABEL, "Stall Sustain Millis", stallSustainMillis);
+            log(LABEL, "Stall Cooldown Millis", stallCooldownMillis);
+            log(LABEL, "Stall Hard Limit Millis", stallHardLimitMillis == 0 ? "None" : stallHardLimitMillis);
+        }
+        log(LABEL, "Watchdog Millis", watchdogMillis == 0 ? "Off" : watchdogMillis);
+        log(LABEL, "Queue Sample Millis", queueSampleMillis);
+        log(LABEL, "Queue Sample Csv", queueSampleCsv == null ? "None" : queueSampleCsv);
+        log(LABEL, "Result Store", resultStore == null ? "None" : resultStore);
+    }
+
+    public void run() throws IOException, InterruptedException {
+        statisticsCollector = new CustomStatisticsCollector(thresholdMillis, forceReconnect, reportEvery,
+            payloadSize, maxMessagesInOutgoingQueue);
+        if (stallDetector) {
+            // the threshold is the stall's high mark, and only a sustained stall acts
+            statisticsCollector.stallDetector = new StallDetector(LABEL, thresholdMillis, stallLowMillis,
+                stallSustainMillis, stallCooldownMillis, stallHardLimitMillis, StallDetector.DEFAULT_ALPHA,
+                forceReconnect ? StallDetector.forceReconnect() : StallDetector.log());
+        }
+        if (watchdogMillis > 0) {
+            statisticsCollector.watchdog = new WriterWatchdog(LABEL, watchdogMillis,
+                forceReconnect ? WriterWatchdog.forceReconnect(LABEL) : WriterWatchdog.log(LABEL));
+        }
 
         Options options = Options.builder()
-            .servers(ServerBootstrap)
-            .connectionListener(new CustomConnectionListener())
-            .connectionTimeout(ConnectionTimeoutMs)
-            .socketWriteTimeout(SocketWriteTimeoutMs)
-            .maxMessagesInOutgoingQueue(MaxMessagesInOutgoingQueue)
-            .bufferSize(BufferSizeInBytes)
+            .servers(servers)
+            .connectionListener(new CustomConnectionListener(statisticsCollector))
+            .connectionTimeout(connectionTimeoutMillis)
+            .socketWriteTimeout(socketWriteTimeoutMillis)
+            .maxMessagesInOutgoingQueue(maxMessagesInOutgoingQueue)
+            .bufferSize(bufferSize)
             .statisticsCollector(statisticsCollector)
             .build();
 
-        byte[] data = new byte[PayloadSize];
+        // a run that is stopped early, or has no duration, still reports
+        Thread hook = new Thread(this::finish);
+        Runtime.getRuntime().addShutdownHook(hook);
+
+        byte[] data = new byte[payloadSize];
         try (Connection connection = Nats.connect(options)) {
             statisticsCollector.setConnection(connection);
-            while (true) {
-                connection.publish("subject", data);
-                Thread.sleep(ThreadLocalRandom.current().nextLong(JitterMs));
+            if (statisticsCollector.stallDetector != null) {
+                statisticsCollector.stallDetector.setConnection(connection);
+            }
+            if (statisticsCollector.watchdog != null) {
+                statisticsCollector.watchdog.start(connection);
+            }
+            if (queueSampleMillis > 0) {
+                sampler = new OutgoingQueueSampler(LABEL, connection, queueSampleMillis).start();
+            }
+            if (intervalMillis > 0) {
+                intervalReporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "interval-reporter");
+                    t.setDaemon(true);
+                    return t;
+                });
+                intervalReporter.scheduleAtFixedRate(this::reportInterval, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+            }
+            startNanos = System.nanoTime();
+            long stopNanos = durationSeconds == 0 ? Long.MAX_VALUE : startNanos + durationSeconds * 1_000_000_000L;
+            EnqueueStamps stamps = statisticsCollector.enqueued;
+            while (System.nanoTime() < stopNanos) {
+                stamps.offer(System.nanoTime());
+                try {
+                    connection.publish(subject, data);
+                }
+                catch (RuntimeException e) {
+                    stamps.retract(); // never queued, so the writer will never take it
+                    throw e;
+                }
+                statisticsCollector.published.incrementAndGet();
+                if (jitterMillis > 0) {
+                    //noinspection BusyWait
+                    Thread.sleep(ThreadLocalRandom.current().nextLong(jitterMillis));
+                }
+            }
+            connection.flush(Duration.ofMillis(connectionTimeoutMillis));
+        }
+        catch (Exception e) {
+            log(LABEL, "Run Ended With Exception", e);
+        }
+        finish();
+        Runtime.getRuntime().removeShutdownHook(hook);
+    }
+
+    private void finish() {
+        if (!finished.compareAndSet(false, true)) {
+            return;
+        }
+        endNanos = System.nanoTime();
+        if (intervalReporter != null) {
+            intervalReporter.shutdownNow();
+        }
+        if (statisticsCollector.watchdog != null) {
+            try {
+                statisticsCollector.watchdog.stop();
+            }
+            catch (InterruptedException ignore) {}
+        }
+        if (sampler != null) {
+            reportQueueSamples();
+        }
+        report();
+        storeResult();
+    }
+
+    private void reportQueueSamples() {
+        try {
+            sampler.stop();
+            sampler.report(maxMessagesInOutgoingQueue);
+            if (queueSampleCsv != null) {
+                sampler.writeCsv(queueSampleCsv);
             }
         }
+        catch (InterruptedException | IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void reportInterval() {
+        // snapshot first, the writer thread keeps recording while the difference is taken
+        LatencyHistogram current = new LatencyHistogram();
+        current.add(statisticsCollector.writeLatency);
+        LatencyHistogram interval = new LatencyHistogram();
+        interval.setToDifference(current, previousWriteLatency);
+        previousWriteLatency = current;
+        log(LABEL, "Interval | writes %s | p50 %s | p99 %s | p99.9 %s | max %s",
+            interval.getTotalCount(),
+            LatencyHistogram.millis(interval.getValueAtPercentile(50)),
+            LatencyHistogram.millis(interval.getValueAtPercentile(99)),
+            LatencyHistogram.millis(interval.getValueAtPercentile(99.9)),
+            LatencyHistogram.millis(interval.getMax()));
+    }
+
+    private static void printDistribution(String name, LatencyHistogram h) {
+        System.out.println(stringify("  %s (%s)", name, format(h.getTotalCount())));
+        for (double p : LatencyHistogram.FULL_PERCENTILES) {
+            System.out.println(String.format("    p%-6s %s", LatencyHistogram.percentileLabel(p), LatencyHistogram.millis(h.getValueAtPercentile(p))));
+        }
+        System.out.println(String.format("    %-7s %s", "max", LatencyHistogram.millis(h.getMax())));
+        System.out.println(String.format("    %-7s %s", "mean", LatencyHistogram.millis((long)h.getMean())));
+    }
+
+    public double getElapsedSeconds() {
+        return startNanos == 0 ? 0 : (endNanos - startNanos) / 1_000_000_000.0;
+    }
+
+    public double getMessagesPerSecond() {
+        double seconds = getElapsedSeconds();
+        return seconds == 0 ? 0 : statisticsCollector.published.get() / seconds;
+    }
+
+    private void report() {
+        CustomStatisticsCollector sc = statisticsCollector;
+        double mps = getMessagesPerSecond();
+        System.out.println("\n" + LABEL);
+        System.out.println(stringify("  Elapsed Seconds:               %s", String.format("%.3f", getElapsedSeconds())));
+        System.out.println(stringify("  Published Messages:            %s", formatRight(sc.published.get(), 7)));
+        System.out.println(stringify("  Messages Per Second:           %s", formatRight((long)mps, 7)));
+        System.out.println(stringify("  Bytes Per Second:              %s", formatRight((long)(mps * payloadSize), 7)));
+        System.out.println(stringify("  Socket Writes:                 %s", formatRight(sc.totalWrites, 7)));
+        printDistribution("Write Latency", sc.writeLatency);
+        printDistribution("Message Residency", sc.residency);
+        if (sc.stallDetector != null) {
+            sc.stallDetector.report();
+        }
+        if (sc.watchdog != null) {
+            sc.watchdog.report();
+        }
+        System.out.println(stringify("  Threshold (%sms) Crossed:       %s", thresholdMillis, formatRight(sc.thresholdCrossings.get(), 7)));
+        System.out.println(stringify("  Forced Reconnects:             %s", formatRight(sc.forcedReconnects.get(), 7)));
+    }
+
+    private void storeResult() {
+        if (resultStore == null) {
+            return;
+        }
+        CustomStatisticsCollector sc = statisticsCollector;
+        ResultStore.Record r = new ResultStore.Record("connection-tune")
+            .param("payload.size", payloadSize)
+            .param("jitter.millis", jitterMillis)
+            .param("duration.seconds", durationSeconds)
+            .param("connection.timeout.millis", connectionTimeoutMillis)
+            .param("socket.write.timeout.millis", socketWriteTimeoutMillis)
+            .param("max.outgoing.queue", maxMessagesInOutgoingQueue)
+            .param("buffer.size", bufferSize)
+            .param("threshold.millis", thresholdMillis)
+            .param("force.reconnect", forceReconnect)
+            .metric("elapsed seconds", getElapsedSeconds())
+            .metric("published", sc.published.get())
+            .metric("messages per second", getMessagesPerSecond())
+            .metric("total messages", sc.totalMessages)
+            .metric("total writes", sc.totalWrites)
+            .metric("residency average ms", sc.residency.getMean() / 1_000_000F)
+            .metric("residency p99 ms", sc.residency.getValueAtPercentile(99) / 1_000_000F)
+            .metric("residency max ms", sc.residency.getMax() / 1_000_000F)
+            .metric("write latency p50 ms", sc.writeLatency.getValueAtPercentile(50) / 1_000_000F)
+            .metric("write latency p99 ms", sc.writeLatency.getValueAtPercentile(99) / 1_000_000F)
+            .metric("write latency p99.9 ms", sc.writeLatency.getValueAtPercentile(99.9) / 1_000_000F)
+            .metric("write latency max ms", sc.writeLatency.getMax() / 1_000_000F)
+            .metric("threshold crossings", sc.thresholdCrossings.get())
+            .metric("forced reconnects", sc.forcedReconnects.get());
+        if (sc.stallDetector != null) {
+            r.param("stall.low.millis", stallLowMillis)
+                .param("stall.sustain.millis", stallSustainMillis)
+                .param("stall.cooldown.millis", stallCooldownMillis)
+                .param("stall.hard.limit.millis", stallHardLimitMillis)
+                .metric("stall fires", sc.stallDetector.getFires());
+        }
+        if (sc.watchdog != null) {
+            r.param("watchdog.millis", watchdogMillis).metric("writer stalls", sc.watchdog.getStalls().size());
+        }
+        new ResultStore(resultStore).appendQuietly(r);
     }
 
     static class CustomConnectionListener implements ConnectionListener {
+        final CustomStatisticsCollector statisticsCollector;
+
+        public CustomConnectionListener(CustomStatisticsCollector statisticsCollector) {
+            this.statisticsCollector = statisticsCollector;
+        }
+
         @Override
         public void connectionEvent(Connection conn, Events type) {
+            if (type == Events.DISCONNECTED) {
+                statisticsCollector.discardPending = true;
+            }
             System.out.println(type.name()
                     + " | pending queue: " + conn.outgoingPendingMessageCount() + " msgs, " + conn.outgoingPendingBytes() + " bytes"
             );
@@ -66,18 +450,36 @@ public class MainConnectionTune {
     }
 
     static class CustomStatisticsCollector extends NoOpStatistics {
+        final long thresholdMillis;
         final long thresholdNanos;
+        final boolean forceReconnect;
+        final int reportEvery;
         Connection connection;
+        StallDetector stallDetector; // when set, it decides when to act, not the single write threshold
+        WriterWatchdog watchdog;
 
-        long incrementedAt;
+        final AtomicLong published = new AtomicLong();
+        final AtomicLong thresholdCrossings = new AtomicLong();
+        final AtomicLong forcedReconnects = new AtomicLong();
+        // the writer thread is the only one that buffers and writes, so the fifo needs no locking
+        final ResidencyFifo fifo = new ResidencyFifo();
+        final EnqueueStamps enqueued; // when each message was published, the fifo is matched against these
+        final int payloadSize;
+        final LatencyHistogram residency = new LatencyHistogram();
+        final LatencyHistogram writeLatency = new LatencyHistogram(); // lock free, read by the interval reporter
+        volatile boolean discardPending;
         long inFlight = 0;
         long totalMessages = 0;
-        long totalElapsedNanos = 0;
         long totalWrites = 0;
-        float writeAverage;
 
-        public CustomStatisticsCollector() {
-            thresholdNanos = StatisticsThresholdMillis * NANOS_PER_MILLI;
+        public CustomStatisticsCollector(long thresholdMillis, boolean forceReconnect, int reportEvery,
+                                         int payloadSize, int maxMessagesInOutgoingQueue) {
+            this.thresholdMillis = thresholdMillis;
+            thresholdNanos = thresholdMillis * NANOS_PER_MILLI;
+            this.forceReconnect = forceReconnect;
+            this.reportEvery = reportEvery;
+            this.payloadSize = payloadSize;
+            enqueued = new EnqueueStamps(maxMessagesInOutgoingQueue);
         }
 
         public void setConnection(Connection connection) {
@@ -86,41 +488,65 @@ public class MainConnectionTune {
 
         @Override
         public void registerWrite(long bytes) {
-            long elapsedNanos = System.nanoTime() - incrementedAt;
+            if (watchdog != null) {
+                watchdog.written();
+            }
+            discardIfDisconnected();
+            long elapsedNanos = fifo.written(bytes, System.nanoTime(), residency); // the oldest message in the write
+            if (elapsedNanos >= 0) {
+                writeLatency.record(elapsedNanos);
+                if (stallDetector != null) {
+                    stallDetector.writeLatency(elapsedNanos);
+                }
+            }
             if (elapsedNanos > thresholdNanos) {
-                report("Threshold (" + StatisticsThresholdMillis + "ms) crossed ", elapsedNanos);
-                connection.getOptions().getConnectExecutor().execute(() -> {
-                    try {
-                        connection.forceReconnect(FORCE_CLOSE_INSTANCE);
-                    }
-                    catch (IOException | InterruptedException e) {
-                        // if IOException happens you should make an entirely new connection
-                        // but it should actually never happen.
-                        // if InterruptedException, that means your app killed this thread
-                        // which also probably won't happen
-                        System.exit(0);
-                    }
-                });
+                thresholdCrossings.incrementAndGet();
+                report("Threshold (" + thresholdMillis + "ms) crossed ", elapsedNanos);
+                if (forceReconnect && stallDetector == null) {
+                    forcedReconnects.incrementAndGet();
+                    connection.getOptions().getConnectExecutor().execute(() -> {
+                        try {
+                            connection.forceReconnect(FORCE_CLOSE_INSTANCE);
+                        }
+                        catch (IOException | InterruptedException e) {
+                            // if IOException happens you should make an entirely new connection
+                            // but it should actually never happen.
+                            // if InterruptedException, that means your app killed this thread
+                            // which also probably won't happen
+                            System.exit(0);
+                        }
+                    });
+                }
             }
-            if (totalMessages % 100 == 0) {
+            if (reportEvery > 0 && totalMessages % reportEvery == 0) {
                 report("Report", elapsedNanos);
             }
             inFlight -= bytes;
-            totalElapsedNanos += elapsedNanos;
             totalWrites++;
-            writeAverage = (float)totalElapsedNanos / totalWrites;
         }
 
         @Override
         public void incrementOutBytes(long bytes) {
+            discardIfDisconnected();
             totalMessages++; // I know this is called once per message
-            incrementedAt = System.nanoTime();
+            // only published messages were stamped, protocol messages like PING are smaller than the payload
+            long publishedNanos = bytes >= payloadSize ? enqueued.poll() : -1;
+            fifo.buffered(publishedNanos < 0 ? System.nanoTime() : publishedNanos, bytes);
             inFlight += bytes;
         }
 
+        private void discardIfDisconnected() {
+            // what was buffered when the connection dropped is never written, so it would look like it waited forever
+            if (discardPending) {
+                discardPending = false;
+                fifo.clear();
+                inFlight = 0;
+            }
+        }
+
         private void report(String label, long elapsedNanos) {
             float elapsedMillis = (float)elapsedNanos / 1_000_000F;
-            float writeAverageMillis = writeAverage / 1_000_000F;
+            float writeAverageMillis = (float)residency.getMean() / 1_000_000F;
             System.out.println(label + ": " + inFlight + " bytes"
                 + " | " + String.format("%.3f", elapsedMillis) + "ms vs average: " + String.format("%.3f", writeAverageMillis) + "ms"
                 + " | pending queue: " + connection.outgoingPendingMessageCount() + " msgs, " + connection.outgoingPendingBytes() + " bytes"
@@ -11,13 +11,16 @@ package io.synadia.tuning.consumercreate;
 
 import io.nats.client.*;
 import io.nats.client.api.StreamConfiguration;
+import io.synadia.utils.LocalCluster;
 import io.synadia.utils.MiscUtils;
+import io.synadia.utils.ResultStore;
 import io.synadia.utils.UniqueSubjectGenerator;
 
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 
+import static io.synadia.tuning.consumercreate.Report.appendResults;
 import static io.synadia.tuning.consumercreate.Report.writeCsv;
 import static io.synadia.tuning.consumercreate.Report.writeTextReport;
 
@@ -30,58 +33,77 @@ public class MainConsumerCreate {
         List<Report> reports = new ArrayList<>();
         Settings settings = new Settings();
 
-        settings.optionsBuilder = () -> Options.builder().server("localhost:4222,localhost:5222,localhost:6222");
-
-        AppStrategy[] appStrategies = new AppStrategy[] {
-            AppStrategy.Client_Api_Subscribe
-            , AppStrategy.Individual_Immediately
-            , AppStrategy.Individual_After_Creates
-            , AppStrategy.Create_Consumer_Only
-        };
-
-        SubStrategy[] subStrategies = new SubStrategy[] {
-            SubStrategy.Pull_Fast_Bind
-            , SubStrategy.Pull_Bind
-            , SubStrategy.Pull_Provide_Stream
-            , SubStrategy.Pull_Without_Stream
-            , SubStrategy.Push_Without_Stream
-            , SubStrategy.Push_Provide_Stream
-            , SubStrategy.Push_Bind
-        };
-
-        int[] threadsPerApp = new int[]{1, 10, 100};
-
-        for (AppStrategy asy : appStrategies) {
-            for (SubStrategy ssy : subStrategies) {
-                for (int tpa : threadsPerApp) {
-                    settings.appStrategy = asy;
-                    settings.subStrategy = ssy;
-                    settings.threadsPerApp = tpa;
-
-                    String title = tpa + " " + asy.name().toLowerCase().replace("_", " ");
-                    settings.streamName = title.replace(" ", "-");
-                    settings.subjectGenerator = new UniqueSubjectGenerator();
-                    settings.timeoutMs = 180_000;
-
-                    // either set the reportFrequency manually or
-                    // call autoReportFrequency which makes this calculation:
-                    // reportFrequency = Math.max(1, (int) (consumersPerApp / threadsPerApp * autoReportFactor));
-
-                    // settings.reportFrequency = 10;
-                    settings.autoReportFrequency();
-
-                    if (settings.isValid()) { // just skip invalid settings when strategies don't work together.
-                        Thread.sleep(1000);
-                        Report r = run(title, settings);
-                        if (r != null) {
-                            reports.add(r);
+        // "local" runs against a cluster started here instead of servers already running
+        LocalCluster cluster = null;
+        if (args.length > 0 && args[0].equalsIgnoreCase("local")) {
+            cluster = new LocalCluster(3, true).start();
+            String[] urls = cluster.getUrls();
+            settings.optionsBuilder = () -> Options.builder().servers(urls);
+        }
+        else {
+            settings.optionsBuilder = () -> Options.builder().server("localhost:4222,localhost:5222,localhost:6222");
+        }
+
+        // the cluster's servers are separate processes, they have to be stopped however the run ends
+        try {
+            AppStrategy[] appStrategies = new AppStrategy[] {
+                AppStrategy.Client_Api_Subscribe
+                , AppStrategy.Individual_Immediately
+                , AppStrategy.Individual_After_Creates
+                , AppStrategy.Create_Consumer_Only
+            };
+
+            SubStrategy[] subStrategies = new SubStrategy[] {
+                SubStrategy.Pull_Fast_Bind
+                , SubStrategy.Pull_Bind
+                , SubStrategy.Pull_Provide_Stream
+                , SubStrategy.Pull_Without_Stream
+                , SubStrategy.Push_Without_Stream
+                , SubStrategy.Push_Provide_Stream
+                , SubStrategy.Push_Bind
+            };
+
+            int[] threadsPerApp = new int[]{1, 10, 100};
+
+            for (AppStrategy asy : appStrategies) {
+                for (SubStrategy ssy : subStrategies) {
+                    for (int tpa : threadsPerApp) {
+                        settings.appStrategy = asy;
+                        settings.subStrategy = ssy;
+                        settings.threadsPerApp = tpa;
+
+                        String title = tpa + " " + asy.name().toLowerCase().replace("_", " ");
+                        settings.streamName = title.replace(" ", "-");
+                        settings.subjectGenerator = new UniqueSubjectGenerator();
+                        settings.timeoutMs = 180_000;
+
+                        // either set the reportFrequency manually or
+                        // call autoReportFrequency which makes this calculation:
+                        // reportFrequency = Math.max(1, (int) (consumersPerApp / threadsPerApp * autoReportFactor));
+
+                        // settings.reportFrequency = 10;
+                        settings.autoReportFrequency();
+
+                        if (settings.isValid()) { // just skip invalid settings when strategies don't work together.
+                            Thread.sleep(1000);
+                            Report r = run(title, settings);
+                            if (r != null) {
+                                reports.add(r);
+                            }
+                            cleanupAfterRun(settings);
                         }
-                        cleanupAfterRun(settings);
                     }
                 }
             }
         }
+        finally {
+            if (cluster != null) {
+                cluster.close();
+            }
+        }
 
+        // first, the report files below are written to a fixed path that may not exist
+        appendResults(reports, ResultStore.DEFAULT_FILE);
         writeTextReport(reports, "C:\\temp\\create-consumer-report.txt");
         writeCsv(reports, "C:\\temp\\create-consumer-report.csv");
     }
@@ -9,6 +9,8 @@
 
 package io.synadia.tuning.consumercreate;
 
+import io.synadia.utils.ResultStore;
+
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -65,6 +67,45 @@ public class Report {
         }
     }
 
+    /**
+     * Keep each report as a record, settings rows are parameters, numeric rows are metrics named "Section Description"
+     */
+    public static void appendResults(List<Report> reports, String fn) {
+        ResultStore store = new ResultStore(fn);
+        for (Report r : reports) {
+            store.appendQuietly(r.toRecord());
+        }
+    }
+
+    public ResultStore.Record toRecord() {
+        ResultStore.Record record = new ResultStore.Record("consumer-create").param("Title", title);
+        String section = "";
+        for (int row = 0; row < rows(); row++) {
+            String text = sections.get(row);
+            if (text != null) {
+                section = text;
+                continue;
+            }
+            String description = descriptions.get(row);
+            String value = values.get(row);
+            if (value == null || value.isEmpty()) {
+                continue;
+            }
+            if (section.equals("Settings")) {
+                record.param(description, value);
+            }
+            else {
+                try {
+                    record.metric(section + " " + description, Double.parseDouble(value));
+                }
+                catch (NumberFormatException ignore) {
+                    record.param(section + " " + description, value);
+                }
+            }
+        }
+        return record;
+    }
+
     public Report(String title, Settings settings, AppSimulator[] apps, long time) {
         this.title = title;
         sections = new ArrayList<>();
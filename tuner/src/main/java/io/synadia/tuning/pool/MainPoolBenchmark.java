@@ -0,0 +1,224 @@
+// Copyright (c) 2025 Synadia Communications Inc. All Rights Reserved.
+// See LICENSE and NOTICE file for details.
+
+package io.synadia.tuning.pool;
+
+import io.nats.client.Options;
+import io.synadia.utils.LatencyHistogram;
+import io.synadia.utils.PooledPublisher;
+import io.synadia.utils.ResultStore;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.synadia.utils.ArgumentUtils.*;
+import static io.synadia.utils.Debug.log;
+
+/*
+    Compares publishing through one connection with publishing through a PooledPublisher, as the number
+    of publishing threads grows. Every thread publishes to its own subject as fast as it can for the duration,
+    timing every publish call, since a publish blocks or is rejected when the outgoing queue is full.
+    Throughput includes flushing what was still queued at the end. Prints the throughput and the publish call
+    latency tail for every thread count, single and pooled, and keeps each as a result.
+ */
+public class MainPoolBenchmark {
+    private static final String LABEL = "POOL";
+    private static final String[] KEYS_SERVERS = new String[]{"servers", "s"};
+    private static final String[] KEYS_THREADS = new String[]{"threads", "t"};
+    private static final String[] KEYS_POOL_SIZE = new String[]{"pool.size", "ps"};
+    private static final String[] KEYS_ROUTING = new String[]{"routing", "r"};
+    private static final String[] KEYS_PAYLOAD_SIZE = new String[]{"payload.size", "p"};
+    private static final String[] KEYS_DURATION_SECONDS = new String[]{"duration.seconds", "d"};
+    private static final String[] KEYS_MAX_OUTGOING_QUEUE = new String[]{"max.outgoing.queue", "mq"};
+    private static final String[] KEYS_SUBJECT_PREFIX = new String[]{"subject.prefix", "sp"};
+    private static final String[] KEYS_RESULT_STORE = new String[]{"result.store", "rs"};
+
+    static class Result {
+        final int threads;
+        final int poolSize;
+        final long published;
+        final long rejected;
+        final double seconds;
+        final LatencyHistogram latency;
+        final long[] perConnection;
+
+        Result(int threads, int poolSize, long published, long rejected, double seconds, LatencyHistogram latency, long[] perConnection) {
+            this.threads = threads;
+            this.poolSize = poolSize;
+            this.published = published;
+            this.rejected = rejected;
+            this.seconds = seconds;
+            this.latency = latency;
+            this.perConnection = perConnection;
+        }
+
+        double messagesPerSecond() {
+            return seconds == 0 ? 0 : published / seconds;
+        }
+    }
+
+    final String[] servers;
+    final int[] threadCounts;
+    final int poolSize;
+    final PooledPublisher.Routing routing;
+    final int payloadSize;
+    final long durationSeconds;
+    final int maxOutgoingQueue;
+    final String subjectPrefix;
+    final String resultStore;
+
+    public static void main(String[] args) throws Exception {
+        new MainPoolBenchmark(args).run();
+    }
+
+    public MainPoolBenchmark(String[] args) {
+        //noinspection DataFlowIssue
+        servers = getArg(args, "nats://localhost:4222", KEYS_SERVERS).split(",");
+        //noinspection DataFlowIssue
+        String[] split = getArg(args, "1,2,4,8,16", KEYS_THREADS).split(",");
+        threadCounts = new int[split.length];
+        for (int ix = 0; ix < split.length; ix++) {
+            threadCounts[ix] = parseInt(split[ix]);
+        }
+        poolSize = getIntArg(args, 4, KEYS_POOL_SIZE);
+        routing = PooledPublisher.Routing.parse(getArg(args, PooledPublisher.Routing.LeastLoaded.name(), KEYS_ROUTING));
+        payloadSize = getIntArg(args, 128, KEYS_PAYLOAD_SIZE);
+        durationSeconds = getLongArg(args, 5, KEYS_DURATION_SECONDS);
+        maxOutgoingQueue = getIntArg(args, 0, KEYS_MAX_OUTGOING_QUEUE);
+        subjectPrefix = getArg(args, "pool", KEYS_SUBJECT_PREFIX);
+        String _resultStore = getArg(args, ResultStore.DEFAULT_FILE, KEYS_RESULT_STORE);
+        resultStore = "none".equalsIgnoreCase(_resultStore) ? null : _resultStore;
+
+        if (poolSize < 2) {
+            throw new IllegalArgumentException("Pool size must be at least 2 to compare with a single connection");
+        }
+        if (durationSeconds < 1) {
+            throw new IllegalArgumentException("Duration seconds must be at least 1");
+        }
+
+        log(LABEL, "----- Benchmark Options -----");
+        log(LABEL, "Servers", servers);
+        log(LABEL, "Threads", Arrays.toString(threadCounts));
+        log(LABEL, "Pool Size", poolSize);
+        log(LABEL, "Routing", routing);
+        log(LABEL, "Payload Size", payloadSize);
+        log(LABEL, "Duration Seconds", durationSeconds);
+        log(LABEL, "Max Outgoing Queue", maxOutgoingQueue <= 0 ? "Client Default" : maxOutgoingQueue);
+        log(LABEL, "Result Store", resultStore == null ? "None" : resultStore);
+    }
+
+    public void run() throws Exception {
+        Options.Builder builder = new Options.Builder()
+            .servers(servers)
+            .ignoreDiscoveredServers();
+        if (maxOutgoingQueue > 0) {
+            builder.maxMessagesInOutgoingQueue(maxOutgoingQueue);
+        }
+        Options options = builder.build();
+
+        List<Result> results = new ArrayList<>();
+        for (int threads : threadCounts) {
+            results.add(runOne(options, threads, 1));
+            results.add(runOne(options, threads, poolSize));
+        }
+        report(results);
+        if (resultStore != null) {
+            ResultStore store = new ResultStore(resultStore);
+            for (Result r : results) {
+                store.appendQuietly(toRecord(r));
+            }
+        }
+    }
+
+    private Result runOne(Options options, int threads, int size) throws Exception {
+        log(LABEL, "Running %s threads, %s connection(s)", threads, size);
+        byte[] payload = new byte[payloadSize];
+        LatencyHistogram[] histograms = new LatencyHistogram[threads];
+        AtomicLong published = new AtomicLong();
+        AtomicLong rejected = new AtomicLong();
+        try (PooledPublisher publisher = new PooledPublisher(options, size, routing)) {
+            CountDownLatch go = new CountDownLatch(1);
+            Thread[] list = new Thread[threads];
+            for (int tx = 0; tx < threads; tx++) {
+                LatencyHistogram h = new LatencyHistogram(); // one per thread, so recording doesn't contend
+                histograms[tx] = h;
+                String subject = subjectPrefix + "." + tx;
+                list[tx] = new Thread(() -> {
+                    try {
+                        go.await();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    long stop = System.nanoTime() + durationSeconds * 1_000_000_000L;
+                    long count = 0;
+                    long start = System.nanoTime();
+                    while (start < stop) {
+                        try {
+                            publisher.publish(subject, payload);
+                            count++;
+                        }
+                        catch (IllegalStateException e) {
+                            rejected.incrementAndGet(); // the outgoing queue is full
+                        }
+                        long end = System.nanoTime();
+                        h.record(end - start);
+                        start = end;
+                    }
+                    published.addAndGet(count);
+                }, LABEL + "-" + tx);
+                list[tx].start();
+            }
+
+            long startNanos = System.nanoTime();
+            go.countDown();
+            for (Thread t : list) {
+                t.join();
+            }
+            publisher.flush(Duration.ofSeconds(30)); // what was queued is part of the throughput
+            double seconds = (System.nanoTime() - startNanos) / 1_000_000_000.0;
+
+            LatencyHistogram latency = new LatencyHistogram();
+            for (LatencyHistogram h : histograms) {
+                latency.add(h);
+            }
+            return new Result(threads, size, published.get(), rejected.get(), seconds, latency, publisher.getPublished());
+        }
+    }
+
+    private void report(List<Result> results) {
+        System.out.println("\nPOOL BENCHMARK");
+        System.out.println(String.format("%8s %12s %14s %10s %12s %12s %12s %12s  %s",
+            "threads", "connections", "msgs/sec", "rejected", "p50", "p99", "p99.9", "max", "per connection"));
+        for (Result r : results) {
+            System.out.println(String.format("%8s %12s %14s %10s %12s %12s %12s %12s  %s",
+                r.threads, r.poolSize, format((long)r.messagesPerSecond()), format(r.rejected),
+                LatencyHistogram.millis(r.latency.getValueAtPercentile(50)),
+                LatencyHistogram.millis(r.latency.getValueAtPercentile(99)),
+                LatencyHistogram.millis(r.latency.getValueAtPercentile(99.9)),
+                LatencyHistogram.millis(r.latency.getMax()),
+                Arrays.toString(r.perConnection)));
+        }
+    }
+
+    private ResultStore.Record toRecord(Result r) {
+        return new ResultStore.Record("pool-benchmark")
+            .param("threads", r.threads)
+            .param("connections", r.poolSize)
+            .param("routing", routing)
+            .param("payload.size", payloadSize)
+            .param("duration.seconds", durationSeconds)
+            .param("max.outgoing.queue", maxOutgoingQueue)
+            .metric("published", r.published)
+            .metric("rejected", r.rejected)
+            .metric("messages per second", r.messagesPerSecond())
+            .metric("publish p50 ms", r.latency.getValueAtPercentile(50) / 1_000_000.0)
+            .metric("publish p99 ms", r.latency.getValueAtPercentile(99) / 1_000_000.0)
+            .metric("publish p99.9 ms", r.latency.getValueAtPercentile(99.9) / 1_000_000.0)
+            .metric("publish max ms", r.latency.getMax() / 1_000_000.0);
+    }
+}
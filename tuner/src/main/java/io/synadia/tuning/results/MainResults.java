@@ -0,0 +1,183 @@
+// Copyright (c) 2025 Synadia Communications Inc. All Rights Reserved.
+// See LICENSE and NOTICE file for details.
+
+package io.synadia.tuning.results;
+
+import io.synadia.utils.ResultStore;
+import io.synadia.utils.ResultStore.Record;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static io.synadia.utils.ArgumentUtils.getArg;
+import static io.synadia.utils.ArgumentUtils.getIntArg;
+import static io.synadia.utils.Debug.simpleTime;
+
+/*
+    Query the result store.
+    list                 - one line per record, optionally only tool=<tool>, only the last=<n>
+    show <id>            - everything in a record
+    compare <id> <id>... - the records side by side, parameters and environment that differ, then every metric,
+                           with the change from the first record
+    store=<path> to use a store other than the default
+ */
+public class MainResults {
+    private static final String[] KEYS_STORE = new String[]{"store", "s"};
+    private static final String[] KEYS_TOOL = new String[]{"tool", "t"};
+    private static final String[] KEYS_LAST = new String[]{"last", "l"};
+
+    public static void main(String[] args) throws Exception {
+        ResultStore store = new ResultStore(getArg(args, ResultStore.DEFAULT_FILE, KEYS_STORE));
+        String tool = getArg(args, null, KEYS_TOOL);
+        int last = getIntArg(args, 0, KEYS_LAST);
+
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (!arg.contains("=")) {
+                positional.add(arg);
+            }
+        }
+        String command = positional.isEmpty() ? "list" : positional.get(0).toLowerCase();
+
+        List<Record> records = store.readAll();
+        switch (command) {
+            case "list":
+                list(records, tool, last);
+                break;
+            case "show":
+                for (int ix = 1; ix < positional.size(); ix++) {
+                    show(find(records, positional.get(ix)));
+                }
+                break;
+            case "compare":
+                List<Record> compare = new ArrayList<>();
+                for (int ix = 1; ix < positional.size(); ix++) {
+                    compare.add(find(records, positional.get(ix)));
+                }
+                if (compare.size() < 2) {
+                    throw new IllegalArgumentException("Compare needs at least 2 record ids");
+                }
+                compare(compare);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown command: " + command);
+        }
+    }
+
+    private static Record find(List<Record> records, String id) {
+        int ix = Integer.parseInt(id);
+        for (Record r : records) {
+            if (r.id == ix) {
+                return r;
+            }
+        }
+        throw new IllegalArgumentException("No record with id " + id);
+    }
+
+    private static void list(List<Record> records, String tool, int last) {
+        List<Record> selected = new ArrayList<>();
+        for (Record r : records) {
+            if (tool == null || r.tool.equalsIgnoreCase(tool)) {
+                selected.add(r);
+            }
+        }
+        if (last > 0 && selected.size() > last) {
+            selected = selected.subList(selected.size() - last, selected.size());
+        }
+        for (Record r : selected) {
+            System.out.println(String.format("%5d  %s  %-20s  jnats %-8s  %s",
+                r.id, simpleTime(r.time), r.tool, r.env.get("jnats.version"), join(r.params)));
+        }
+    }
+
+    private static void show(Record r) {
+        System.out.println("Record " + r.id + " | " + r.tool + " | " + simpleTime(r.time));
+        print("Parameters", r.params);
+        print("Environment", r.env);
+        System.out.println("Metrics");
+        for (Map.Entry<String, Double> e : r.metrics.entrySet()) {
+            System.out.println(String.format("  %-40s %s", e.getKey(), number(e.getValue())));
+        }
+        System.out.println();
+    }
+
+    private static void compare(List<Record> records) {
+        StringBuilder header = new StringBuilder(String.format("%-40s", ""));
+        for (Record r : records) {
+            header.append(String.format(" %20s", "#" + r.id + " " + r.tool));
+        }
+        System.out.println(header);
+
+        printDifferences("Parameters", records, true);
+        printDifferences("Environment", records, false);
+
+        Set<String> keys = new LinkedHashSet<>();
+        for (Record r : records) {
+            keys.addAll(r.metrics.keySet());
+        }
+        System.out.println("Metrics");
+        Record first = records.get(0);
+        for (String key : keys) {
+            StringBuilder sb = new StringBuilder(String.format("  %-38s", key));
+            Double base = first.metrics.get(key);
+            for (Record r : records) {
+                Double v = r.metrics.get(key);
+                String s = v == null ? "-" : number(v);
+                if (r != first && v != null && base != null && base != 0) {
+                    s += String.format(" (%+.1f%%)", (v - base) * 100 / Math.abs(base));
+                }
+                sb.append(String.format(" %20s", s));
+            }
+            System.out.println(sb);
+        }
+    }
+
+    private static void printDifferences(String title, List<Record> records, boolean params) {
+        Set<String> keys = new LinkedHashSet<>();
+        for (Record r : records) {
+            keys.addAll(params ? r.params.keySet() : r.env.keySet());
+        }
+        List<String> lines = new ArrayList<>();
+        for (String key : keys) {
+            Set<String> distinct = new LinkedHashSet<>();
+            StringBuilder sb = new StringBuilder(String.format("  %-38s", key));
+            for (Record r : records) {
+                String v = params ? r.params.get(key) : r.env.get(key);
+                distinct.add(String.valueOf(v));
+                sb.append(String.format(" %20s", v == null ? "-" : v));
+            }
+            if (distinct.size() > 1) {
+                lines.add(sb.toString());
+            }
+        }
+        System.out.println(title + (lines.isEmpty() ? " (all the same)" : " (only what differs)"));
+        for (String line : lines) {
+            System.out.println(line);
+        }
+    }
+
+    private static void print(String title, Map<String, String> map) {
+        System.out.println(title);
+        for (Map.Entry<String, String> e : map.entrySet()) {
+            System.out.println(String.format("  %-40s %s", e.getKey(), e.getValue()));
+        }
+    }
+
+    private static String join(Map<String, String> map) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> e : map.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(e.getKey()).append('=').append(e.getValue());
+        }
+        return sb.toString();
+    }
+
+    private static String number(double d) {
+        return d == Math.rint(d) ? String.format("%,d", (long)d) : String.format("%,.3f", d);
+    }
+}
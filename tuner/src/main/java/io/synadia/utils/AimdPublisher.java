@@ -0,0 +1,215 @@
+// Copyright (c) 2025 Synadia Communications Inc. All Rights Reserved.
+// See LICENSE and NOTICE file for details.
+
+package io.synadia.utils;
+
+import io.nats.client.Connection;
+import io.nats.client.impl.Headers;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.DoubleSupplier;
+
+/*
+    Publishes at a permitted rate that backs off before the outgoing queue fills, instead of letting the queue
+    overflow and publish block or throw. Every adjust interval the controller looks at the outgoing pending messages
+    and bytes and, if given one, the write latency. Over any target it multiplies the rate down, otherwise it adds
+    to it, additive increase, multiplicative decrease, so the rate settles around what the writer actually drains
+    and the queue stays near the target occupancy.
+
+    publish() waits for its turn at the permitted rate. tryPublish() doesn't wait, it returns false and counts
+    the message as shed, for publishers that would rather drop than wait.
+ */
+public class AimdPublisher implements AutoCloseable {
+    public static final long DEFAULT_ADJUST_MILLIS = 50;
+    public static final double DEFAULT_DECREASE = 0.5;
+
+    private final Connection conn;
+    private final long targetPendingMessages;
+    private final long targetPendingBytes;
+    private final double targetWriteLatencyNanos;
+    private final DoubleSupplier writeLatencyNanos;
+    private final double minRate;
+    private final double maxRate;
+    private final double increase;
+    private final double decrease;
+    private final ScheduledExecutorService controller;
+
+    private volatile double rate;
+    private volatile long intervalNanos;
+    private final AtomicLong nextPermit = new AtomicLong(System.nanoTime());
+
+    private final LongAdder published = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    // only the controller thread updates these
+    private long increases;
+    private long decreases;
+    private long maxPendingMessages;
+    private double lowestRate;
+
+    /**
+     * @param conn the connection to publish on
+     * @param targetPendingMessages back off when more messages than this are pending
+     * @param targetPendingBytes back off when more bytes than this are pending, 0 to not look at bytes
+     * @param targetWriteLatencyMillis back off when the write latency is over this, ignored without a supplier
+     * @param writeLatencyNanos the current write latency, for instance StallDetector::getEwmaNanos, null to not look at it
+     * @param initialRate messages per second to start at
+     * @param minRate the rate never goes below this
+     * @param maxRate the rate never goes above this
+     * @param increase messages per second added each interval the queue is under target
+     * @param decrease the rate is multiplied by this each interval the queue is over target, 0 to 1
+     * @param adjustMillis how often the rate is adjusted
+     */
+    public AimdPublisher(Connection conn, long targetPendingMessages, long targetPendingBytes,
+                         long targetWriteLatencyMillis, DoubleSupplier writeLatencyNanos,
+                         double initialRate, double minRate, double maxRate,
+                         double increase, double decrease, long adjustMillis) {
+        if (minRate <= 0 || minRate > maxRate) {
+            throw new IllegalArgumentException("The minimum rate must be more than 0 and not more than the maximum rate");
+        }
+        if (decrease <= 0 || decrease >= 1) {
+            throw new IllegalArgumentException("Decrease must be more than 0 and less than 1");
+        }
+        if (adjustMillis < 1) {
+            throw new IllegalArgumentException("Adjust millis must be at least 1");
+        }
+        this.conn = conn;
+        this.targetPendingMessages = targetPendingMessages;
+        this.targetPendingBytes = targetPendingBytes;
+        this.targetWriteLatencyNanos = targetWriteLatencyMillis * 1_000_000.0;
+        this.writeLatencyNanos = writeLatencyNanos;
+        this.minRate = minRate;
+        this.maxRate = maxRate;
+        this.increase = increase;
+        this.decrease = decrease;
+        setRate(Math.max(minRate, Math.min(maxRate, initialRate)));
+        lowestRate = rate;
+
+        controller = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "aimd-controller");
+            t.setDaemon(true);
+            return t;
+        });
+        controller.scheduleAtFixedRate(this::adjust, adjustMillis, adjustMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void setRate(double rate) {
+        this.rate = rate;
+        intervalNanos = (long)(1_000_000_000.0 / rate);
+    }
+
+    private void adjust() {
+        long pendingMessages = conn.outgoingPendingMessageCount();
+        maxPendingMessages = Math.max(maxPendingMessages, pendingMessages);
+        boolean over = pendingMessages > targetPendingMessages
+            || (targetPendingBytes > 0 && conn.outgoingPendingBytes() > targetPendingBytes)
+            || (writeLatencyNanos != null && writeLatencyNanos.getAsDouble() > targetWriteLatencyNanos);
+        if (over) {
+            setRate(Math.max(minRate, rate * decrease));
+            lowestRate = Math.min(lowestRate, rate);
+            decreases++;
+        }
+        else if (rate < maxRate) {
+            setRate(Math.min(maxRate, rate + increase));
+            increases++;
+        }
+    }
+
+    /**
+     * Wait for a permit, then publish
+     */
+    public void publish(String subject, byte[] data) {
+        acquire(true);
+        _publish(subject, null, data);
+    }
+
+    public void publish(String subject, Headers headers, byte[] data) {
+        acquire(true);
+        _publish(subject, headers, data);
+    }
+
+    /**
+     * Publish only if a permit is available now
+     * @return false if the message was shed
+     */
+    public boolean tryPublish(String subject, byte[] data) {
+        if (acquire(false)) {
+            _publish(subject, null, data);
+            return true;
+        }
+        shed.increment();
+        return false;
+    }
+
+    private void _publish(String subject, Headers headers, byte[] data) {
+        try {
+            conn.publish(subject, headers, data);
+            published.increment();
+        }
+        catch (IllegalStateException e) {
+            rejected.increment(); // the outgoing queue was full anyway
+            throw e;
+        }
+    }
+
+    private boolean acquire(boolean wait) {
+        while (true) {
+            long now = System.nanoTime();
+            long next = nextPermit.get();
+            // a permit not used while idle is gone, there is no burst after idling
+            long slot = Math.max(next, now);
+            if (!wait && slot > now) {
+                return false;
+            }
+            if (nextPermit.compareAndSet(next, slot + intervalNanos)) {
+                long waitNanos = slot - now;
+                while (waitNanos > 0) {
+                    LockSupport.parkNanos(waitNanos);
+                    waitNanos = slot - System.nanoTime();
+                }
+                return true;
+            }
+        }
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    public long getPublished() {
+        return published.sum();
+    }
+
+    public long getShed() {
+        return shed.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getMaxPendingMessages() {
+        return maxPendingMessages;
+    }
+
+    @Override
+    public void close() {
+        controller.shutdownNow();
+    }
+
+    public void report() {
+        System.out.println("AIMD Publisher...");
+        System.out.println("  Target Pending Messages:       " + targetPendingMessages);
+        System.out.println("  Rate Now / Lowest:             " + (long)rate + " / " + (long)lowestRate);
+        System.out.println("  Increases / Decreases:         " + increases + " / " + decreases);
+        System.out.println("  Max Pending Messages Seen:     " + maxPendingMessages);
+        System.out.println("  Published:                     " + published.sum());
+        System.out.println("  Shed:                          " + shed.sum());
+        System.out.println("  Rejected:                      " + rejected.sum());
+    }
+}
@@ -0,0 +1,219 @@
+// Copyright (c) 2025 Synadia Communications Inc. All Rights Reserved.
+// See LICENSE and NOTICE file for details.
+
+package io.synadia.utils;
+
+import io.nats.client.StatisticsCollector;
+import io.nats.client.impl.NatsStatistics;
+import io.nats.client.impl.NoOpStatistics;
+
+/*
+    A statistics collector that passes everything on to another collector, by default the client's own
+    NatsStatistics, so a collector built on it can watch writes and still leave the connection's
+    normal statistics working. Subclasses override what they watch and call super.
+ */
+public class DelegatingStatistics extends NoOpStatistics {
+    protected final StatisticsCollector delegate;
+
+    public DelegatingStatistics() {
+        this(new NatsStatistics());
+    }
+
+    public DelegatingStatistics(StatisticsCollector delegate) {
+        this.delegate = delegate == null ? new NatsStatistics() : delegate;
+    }
+
+    public StatisticsCollector getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public void setAdvancedTracking(boolean trackAdvanced) {
+        delegate.setAdvancedTracking(trackAdvanced);
+    }
+
+    @Override
+    public void incrementPingCount() {
+        delegate.incrementPingCount();
+    }
+
+    @Override
+    public void incrementReconnects() {
+        delegate.incrementReconnects();
+    }
+
+    @Override
+    public void incrementDroppedCount() {
+        delegate.incrementDroppedCount();
+    }
+
+    @Override
+    public void incrementOkCount() {
+        delegate.incrementOkCount();
+    }
+
+    @Override
+    public void incrementErrCount() {
+        delegate.incrementErrCount();
+    }
+
+    @Override
+    public void incrementExceptionCount() {
+        delegate.incrementExceptionCount();
+    }
+
+    @Override
+    public void incrementRequestsSent() {
+        delegate.incrementRequestsSent();
+    }
+
+    @Override
+    public void incrementRepliesReceived() {
+        delegate.incrementRepliesReceived();
+    }
+
+    @Override
+    public void incrementDuplicateRepliesReceived() {
+        delegate.incrementDuplicateRepliesReceived();
+    }
+
+    @Override
+    public void incrementOrphanRepliesReceived() {
+        delegate.incrementOrphanRepliesReceived();
+    }
+
+    @Override
+    public void incrementInMsgs() {
+        delegate.incrementInMsgs();
+    }
+
+    @Override
+    public void incrementOutMsgs() {
+        delegate.incrementOutMsgs();
+    }
+
+    @Override
+    public void incrementInBytes(long bytes) {
+        delegate.incrementInBytes(bytes);
+    }
+
+    @Override
+    public void incrementOutBytes(long bytes) {
+        delegate.incrementOutBytes(bytes);
+    }
+
+    @Override
+    public void incrementOut(long bytes) {
+        delegate.incrementOut(bytes);
+    }
+
+    @Override
+    public void incrementFlushCounter() {
+        delegate.incrementFlushCounter();
+    }
+
+    @Override
+    public void incrementOutstandingRequests() {
+        delegate.incrementOutstandingRequests();
+    }
+
+    @Override
+    public void decrementOutstandingRequests() {
+        delegate.decrementOutstandingRequests();
+    }
+
+    @Override
+    public void registerRead(long bytes) {
+        delegate.registerRead(bytes);
+    }
+
+    @Override
+    public void registerWrite(long bytes) {
+        delegate.registerWrite(bytes);
+    }
+
+    @Override
+    public long getPings() {
+        return delegate.getPings();
+    }
+
+    @Override
+    public long getReconnects() {
+        return delegate.getReconnects();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return delegate.getDroppedCount();
+    }
+
+    @Override
+    public long getOKs() {
+        return delegate.getOKs();
+    }
+
+    @Override
+    public long getErrs() {
+        return delegate.getErrs();
+    }
+
+    @Override
+    public long getExceptions() {
+        return delegate.getExceptions();
+    }
+
+    @Override
+    public long getRequestsSent() {
+        return delegate.getRequestsSent();
+    }
+
+    @Override
+    public long getRepliesReceived() {
+        return delegate.getRepliesReceived();
+    }
+
+    @Override
+    public long getDuplicateRepliesReceived() {
+        return delegate.getDuplicateRepliesReceived();
+    }
+
+    @Override
+    public long getOrphanRepliesReceived() {
+        return delegate.getOrphanRepliesReceived();
+    }
+
+    @Override
+    public long getInMsgs() {
+        return delegate.getInMsgs();
+    }
+
+    @Override
+    public long getOutMsgs() {
+        return delegate.getOutMsgs();
+    }
+
+    @Override
+    public long getInBytes() {
+        return delegate.getInBytes();
+    }
+
+    @Override
+    public long getOutBytes() {
+        return delegate.getOutBytes();
+    }
+
+    @Override
+    public long getFlushCounter() {
+        return delegate.getFlushCounter();
+    }
+
+    @Override
+    public long getOutstandingRequests() {
+        return delegate.getOutstandingRequests();
+    }
+
+    @Override
+    public String toString() {
+        return delegate.toString();
+    }
+}
@@ -0,0 +1,74 @@
+// Copyright (c) 2025 Synadia Communications Inc. All Rights Reserved.
+// See LICENSE and NOTICE file for details.
+
+package io.synadia.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    A single producer, single consumer ring of the times messages were handed to publish.
+    The publishing thread offers a stamp just before each publish, the writer thread polls one as each message
+    comes off the outgoing queue, and since the queue is first in first out, each message gets back its own stamp.
+    That lets a statistics collector measure residency from publish, including the wait in the outgoing queue,
+    which the collector's own callbacks can't see, they only start when the writer takes the message.
+    The ring is a primitive array and never allocates. It is sized from the outgoing queue's bound, so it can
+    always hold a stamp for every queued message. A stamp that didn't fit would leave every later message paired
+    with the wrong stamp, so a full ring is a failure, not something to carry on through.
+ */
+public class EnqueueStamps {
+    private final long[] stamps;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // only the consumer moves it
+    private final AtomicLong tail = new AtomicLong(); // only the producer moves it
+
+    /**
+     * @param maxQueued the most messages the outgoing queue can hold, the ring has room for these,
+     *                  the one the writer is taking and the one being published, rounded up to a power of 2
+     */
+    public EnqueueStamps(int maxQueued) {
+        if (maxQueued < 1) {
+            throw new IllegalArgumentException("The outgoing queue must be bounded to stamp its messages");
+        }
+        int size = Integer.highestOneBit(maxQueued + 2 - 1) << 1;
+        stamps = new long[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Producer only
+     * @throws IllegalStateException if the ring is full, more messages are waiting than the queue bound allows
+     */
+    public void offer(long nanos) {
+        long t = tail.get();
+        if (t - head.get() == stamps.length) {
+            throw new IllegalStateException("More messages waiting than the " + stamps.length + " stamp ring holds, stamps would no longer match messages");
+        }
+        stamps[(int)(t & mask)] = nanos;
+        tail.lazySet(t + 1);
+    }
+
+    /**
+     * Producer only, take back the last stamp offered, for a publish that threw, so its message was never queued
+     */
+    public void retract() {
+        tail.lazySet(tail.get() - 1);
+    }
+
+    /**
+     * Consumer only
+     * @return the oldest stamp, -1 if there is none
+     */
+    public long poll() {
+        long h = head.get();
+        if (h == tail.get()) {
+            return -1;
+        }
+        long nanos = stamps[(int)(h & mask)];
+        head.lazySet(h + 1);
+        return nanos;
+    }
+
+    public int capacity() {
+        return stamps.length;
+    }
+}
@@ -0,0 +1,21 @@
+// Copyright (c) 2025 Synadia Communications Inc. All Rights Reserved.
+// See LICENSE and NOTICE file for details.
+
+package io.synadia.utils;
+
+public class FaultEvent {
+    public final long time;
+    public final String label;
+    public final String description;
+
+    public FaultEvent(String label, String description) {
+        this.time = System.currentTimeMillis();
+        this.label = label;
+        this.description = description;
+    }
+
+    @Override
+    public String toString() {
+        return Debug.simpleTime(time) + " " + label + " " + description;
+    }
+}
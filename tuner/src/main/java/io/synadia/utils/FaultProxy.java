@@ -0,0 +1,275 @@
+// Copyright (c) 2025 Synadia Communications Inc. All Rights Reserved.
+// See LICENSE and NOTICE file for details.
+
+package io.synadia.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    A local TCP proxy that sits in front of one server and can be told to misbehave.
+    Faults apply to every connection through the proxy, existing and new.
+    - blackhole: connections stay open but nothing is read or forwarded in either direction, not even what was
+      already read, so the socket buffers fill as they would behind dropped packets, and when it ends
+      both sides carry on from where they stopped, nothing lost in the middle of the protocol
+    - stall: the proxy stops reading from the client only, so the client's socket buffers fill and its writer blocks,
+      while everything from the server, pings and messages, keeps flowing to the client. A slow or wedged
+      server side of one connection, not a dead network like the blackhole
+    - reset: every connection is closed with an RST
+    - half close: every connection gets a FIN on both sides, but reads stay open
+ */
+public class FaultProxy implements AutoCloseable {
+    public enum Mode {
+        Normal,
+        Blackhole,
+        Stall
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private final String label;
+    private final String targetHost;
+    private final int targetPort;
+    private final Object modeLock;
+    private final List<Link> links;
+    private final List<FaultEvent> events;
+
+    private ServerSocket serverSocket;
+    private Thread acceptThread;
+    private volatile Mode mode;
+    private volatile boolean closed;
+
+    public FaultProxy(String label, String targetUrl) {
+        this(label, URI.create(targetUrl).getHost(), URI.create(targetUrl).getPort());
+    }
+
+    public FaultProxy(String label, String targetHost, int targetPort) {
+        this.label = label;
+        this.targetHost = targetHost;
+        this.targetPort = targetPort;
+        modeLock = new Object();
+        links = new ArrayList<>();
+        events = new ArrayList<>();
+        mode = Mode.Normal;
+    }
+
+    public FaultProxy start() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        acceptThread = new Thread(this::accept, label + "-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        Debug.log(label, "Proxy %s -> %s:%s", getUrl(), targetHost, targetPort);
+        return this;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public String getUrl() {
+        return "nats://127.0.0.1:" + getPort();
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public void setMode(Mode mode) {
+        synchronized (modeLock) {
+            if (this.mode != mode) {
+                event(this.mode == Mode.Normal ? mode + " Start" : this.mode + " End");
+                if (mode != Mode.Normal && this.mode != Mode.Normal) {
+                    event(mode + " Start");
+                }
+                this.mode = mode;
+                modeLock.notifyAll();
+            }
+        }
+    }
+
+    public void reset() {
+        List<Link> current = takeLinks();
+        event("Reset " + current.size() + " connection(s)");
+        for (Link link : current) {
+            link.reset();
+        }
+    }
+
+    public void halfClose() {
+        List<Link> current;
+        synchronized (links) {
+            current = new ArrayList<>(links);
+        }
+        event("Half Close " + current.size() + " connection(s)");
+        for (Link link : current) {
+            link.halfClose();
+        }
+    }
+
+    public List<FaultEvent> getEvents() {
+        synchronized (events) {
+            return new ArrayList<>(events);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        setMode(Mode.Normal);
+        try {
+            serverSocket.close();
+        }
+        catch (IOException ignore) {}
+        for (Link link : takeLinks()) {
+            link.close();
+        }
+    }
+
+    private void event(String description) {
+        FaultEvent e = new FaultEvent(label, description);
+        synchronized (events) {
+            events.add(e);
+        }
+        Debug.log(label, description);
+    }
+
+    private List<Link> takeLinks() {
+        synchronized (links) {
+            List<Link> current = new ArrayList<>(links);
+            links.clear();
+            return current;
+        }
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket client = serverSocket.accept();
+                Socket server = new Socket();
+                try {
+                    server.connect(new InetSocketAddress(targetHost, targetPort), CONNECT_TIMEOUT_MILLIS);
+                }
+                catch (IOException e) {
+                    // the server is not there, the client sees the same thing
+                    client.close();
+                    continue;
+                }
+                client.setTcpNoDelay(true);
+                server.setTcpNoDelay(true);
+                Link link = new Link(client, server);
+                synchronized (links) {
+                    links.add(link);
+                }
+                link.start();
+            }
+            catch (IOException e) {
+                if (!closed) {
+                    Debug.log(label, "Accept Failed", e);
+                }
+            }
+        }
+    }
+
+    private boolean faulted(boolean fromClient) {
+        return mode == Mode.Blackhole || (mode == Mode.Stall && fromClient);
+    }
+
+    private void waitWhileFaulted(boolean fromClient) throws InterruptedException {
+        synchronized (modeLock) {
+            while (faulted(fromClient) && !closed) {
+                modeLock.wait();
+            }
+        }
+    }
+
+    class Link {
+        final Socket client;
+        final Socket server;
+
+        Link(Socket client, Socket server) {
+            this.client = client;
+            this.server = server;
+        }
+
+        void start() {
+            String name = label + "-" + client.getPort();
+            Thread up = new Thread(() -> pump(client, server, true), name + "-up");
+            Thread down = new Thread(() -> pump(server, client, false), name + "-down");
+            up.setDaemon(true);
+            down.setDaemon(true);
+            up.start();
+            down.start();
+        }
+
+        void pump(Socket from, Socket to, boolean fromClient) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            try {
+                InputStream in = from.getInputStream();
+                OutputStream out = to.getOutputStream();
+                while (!closed) {
+                    waitWhileFaulted(fromClient);
+                    int read = in.read(buffer);
+                    if (read < 0) {
+                        to.shutdownOutput();
+                        return;
+                    }
+                    // a read already under way when the fault starts is held, not dropped
+                    waitWhileFaulted(fromClient);
+                    out.write(buffer, 0, read);
+                    out.flush();
+                }
+            }
+            catch (IOException | InterruptedException e) {
+                close();
+            }
+        }
+
+        void reset() {
+            try {
+                client.setSoLinger(true, 0);
+                server.setSoLinger(true, 0);
+            }
+            catch (IOException ignore) {}
+            close();
+        }
+
+        void halfClose() {
+            try {
+                client.shutdownOutput();
+            }
+            catch (IOException ignore) {}
+            try {
+                server.shutdownOutput();
+            }
+            catch (IOException ignore) {}
+        }
+
+        void close() {
+            try {
+                client.close();
+            }
+            catch (IOException ignore) {}
+            try {
+                server.close();
+            }
+            catch (IOException ignore) {}
+            synchronized (links) {
+                links.remove(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+// Copyright (c) 2025 Synadia Communications Inc. All Rights Reserved.
+// See LICENSE and NOTICE file for details.
+
+package io.synadia.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+    A timeline of faults to apply to the FaultProxy in front of a server, or to a LocalCluster node.
+    Steps are comma separated, each one is <server index>@<millis after start>:<action>[:<duration millis>]
+    Proxy actions are blackhole, stall, reset and halfclose. Blackhole and stall last for the duration.
+    Cluster actions are kill and restart. A kill with a duration restarts the node when the duration is up.
+    For example: 0@3000:blackhole:1000,0@8000:reset,1@12000:kill:2000
+ */
+public class FaultScript {
+    public enum Action {
+        Blackhole,
+        Stall,
+        Reset,
+        HalfClose,
+        Kill,
+        Restart;
+
+        public boolean needsCluster() {
+            return this == Kill || this == Restart;
+        }
+    }
+
+    public static class Step {
+        public final int proxyIndex;
+        public final long atMillis;
+        public final Action action;
+        public final long durationMillis;
+
+        public Step(int proxyIndex, long atMillis, Action action, long durationMillis) {
+            this.proxyIndex = proxyIndex;
+            this.atMillis = atMillis;
+            this.action = action;
+            this.durationMillis = durationMillis;
+        }
+
+        @Override
+        public String toString() {
+            return proxyIndex + "@" + atMillis + ":" + action.name().toLowerCase()
+                + (durationMillis > 0 ? ":" + durationMillis : "");
+        }
+    }
+
+    public final List<Step> steps;
+
+    public FaultScript(List<Step> steps) {
+        this.steps = steps;
+    }
+
+    public static FaultScript parse(String script) {
+        List<Step> steps = new ArrayList<>();
+        if (script != null) {
+            for (String s : script.split(",")) {
+                s = s.trim();
+                if (s.isEmpty()) {
+                    continue;
+                }
+                try {
+                    int at = s.indexOf('@');
+                    int proxyIndex = Integer.parseInt(s.substring(0, at));
+                    String[] parts = s.substring(at + 1).split(":");
+                    long atMillis = ArgumentUtils.parseLong(parts[0]);
+                    Action action = parseAction(parts[1]);
+                    long duration = parts.length > 2 ? ArgumentUtils.parseLong(parts[2]) : 0;
+                    if (duration <= 0 && (action == Action.Blackhole || action == Action.Stall)) {
+                        throw new IllegalArgumentException("Duration required");
+                    }
+                    steps.add(new Step(proxyIndex, atMillis, action, duration));
+                }
+                catch (RuntimeException e) {
+                    throw new IllegalArgumentException("Invalid fault step: " + s, e);
+                }
+            }
+        }
+        return new FaultScript(steps);
+    }
+
+    private static Action parseAction(String s) {
+        String a = s.trim().replace("-", "").replace("_", "");
+        for (Action action : Action.values()) {
+            if (action.name().equalsIgnoreCase(a)) {
+                return action;
+            }
+        }
+        throw new IllegalArgumentException("Invalid fault action: " + s);
+    }
+
+    public boolean isEmpty() {
+        return steps.isEmpty();
+    }
+
+    public boolean needsCluster() {
+        for (Step step : steps) {
+            if (step.action.needsCluster()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean needsProxies() {
+        for (Step step : steps) {
+            if (!step.action.needsCluster()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int highestProxyIndex() {
+        int highest = -1;
+        for (Step step : steps) {
+            highest = Math.max(highest, step.proxyIndex);
+        }
+        return highest;
+    }
+
+    /**
+     * Schedule every step, timed from now
+     * @param scheduler the scheduler to run the steps on
+     * @param proxies the proxies, indexed by server, may be empty if there are no proxy actions
+     * @param cluster the local cluster, may be null if there are no cluster actions
+     */
+    public void schedule(ScheduledExecutorService scheduler, List<FaultProxy> proxies, LocalCluster cluster) {
+        for (Step step : steps) {
+            if (step.action.needsCluster()) {
+                if (cluster == null) {
+                    throw new IllegalStateException("Fault step requires a local cluster: " + step);
+                }
+                scheduler.schedule(() -> apply(cluster, step, scheduler), step.atMillis, TimeUnit.MILLISECONDS);
+            }
+            else {
+                FaultProxy proxy = proxies.get(step.proxyIndex);
+                scheduler.schedule(() -> apply(proxy, step, scheduler), step.atMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private static void apply(LocalCluster cluster, Step step, ScheduledExecutorService scheduler) {
+        try {
+            if (step.action == Action.Restart) {
+                cluster.restart(step.proxyIndex);
+            }
+            else {
+                cluster.kill(step.proxyIndex);
+                if (step.durationMillis > 0) {
+                    scheduler.schedule(() -> {
+                        try {
+                            cluster.restart(step.proxyIndex);
+                        }
+                        catch (Exception e) {
+                            MiscUtils.reportEx(e);
+                        }
+                    }, step.durationMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+        catch (Exception e) {
+            MiscUtils.reportEx(e);
+        }
+    }
+
+    private static void apply(FaultProxy proxy, Step step, ScheduledExecutorService scheduler) {
+        switch (step.action) {
+            case Blackhole:
+            case Stall:
+                proxy.setMode(step.action == Action.Blackhole ? FaultProxy.Mode.Blackhole : FaultProxy.Mode.Stall);
+                scheduler.schedule(() -> proxy.setMode(FaultProxy.Mode.Normal), step.durationMillis, TimeUnit.MILLISECONDS);
+                break;
+            case Reset:
+                proxy.reset();
+                break;
+            case HalfClose:
+                proxy.halfClose();
+                break;
+            default:
+                break;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+// Copyright (c) 2025 Synadia Communications Inc. All Rights Reserved.
+// See LICENSE and NOTICE file for details.
+
+package io.synadia.utils;
+
+import io.nats.client.Options;
+import io.nats.client.impl.SocketDataPort;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.synadia.utils.ArgumentUtils.formatRight;
+import static io.synadia.utils.Debug.stringify;
+
+/*
+    The default socket data port, timing every write the connection's writer makes to the socket
+    and sizing every write and read. Use it with Options.Builder.dataPortType(InstrumentedSocketDataPort.class.getName())
+    and give the connection a name, the client makes a new data port every connect, so the stats
+    are kept by connection name and add up over reconnects.
+
+    The socket's buffer sizes are read from the connected socket, so they are what the kernel gave,
+    not what was asked for. Linux doubles the requested size and caps it at the net.core wmem_max / rmem_max.
+
+    The socket output stream is blocking, the kernel takes the whole buffer before the write returns,
+    so there is no partial write to count. A write that has to wait for room in the socket send buffer
+    shows up as a long write instead, those over BLOCKED_WRITE_NANOS are counted as blocked.
+    If the stats collector says bytes were buffered but the writes here are short, the stall is
+    in the client's writer, if the writes here are long, the stall is at the socket.
+ */
+public class InstrumentedSocketDataPort extends SocketDataPort {
+    public static final long BLOCKED_WRITE_NANOS = 1_000_000;
+    public static final String UNNAMED = "unnamed";
+
+    private static final Map<String, Stats> STATS = new ConcurrentHashMap<>();
+
+    public static class Stats {
+        public final String name;
+        public final LatencyHistogram writeNanos = new LatencyHistogram();
+        public final LatencyHistogram writeBytes = new LatencyHistogram();
+        public final LatencyHistogram readBytes = new LatencyHistogram();
+        public final AtomicLong blockedWrites = new AtomicLong();
+        public final AtomicLong failedWrites = new AtomicLong();
+        public final AtomicLong dataPorts = new AtomicLong();
+        public final AtomicInteger effectiveSendBufferSize = new AtomicInteger(-1);
+        public final AtomicInteger effectiveReceiveBufferSize = new AtomicInteger(-1);
+
+        Stats(String name) {
+            this.name = name;
+        }
+
+        public void report() {
+            System.out.println(stringify("  Socket Writes:                 %s", formatRight(writeNanos.getTotalCount(), 7)));
+            System.out.println(stringify("  Blocked Writes (> %s ms):       %s", BLOCKED_WRITE_NANOS / 1_000_000, formatRight(blockedWrites.get(), 7)));
+            if (failedWrites.get() > 0) {
+                System.out.println(stringify("  Failed Writes:                 %s", formatRight(failedWrites.get(), 7)));
+            }
+            System.out.println(stringify("  Socket Connects:               %s", formatRight(dataPorts.get(), 7)));
+            System.out.println(stringify("  Effective Send Buffer:         %s", formatRight(effectiveSendBufferSize.get(), 7)));
+            System.out.println(stringify("  Effective Receive Buffer:      %s", formatRight(effectiveReceiveBufferSize.get(), 7)));
+            System.out.println("  Write Time:  " + writeNanos.summary());
+            System.out.println("  Write Bytes: " + bytes(writeBytes));
+            if (readBytes.getTotalCount() > 0) {
+                System.out.println("  Read Bytes:  " + bytes(readBytes));
+            }
+        }
+
+        public static String bytes(LatencyHistogram h) {
+            StringBuilder sb = new StringBuilder();
+            for (double p : LatencyHistogram.STANDARD_PERCENTILES) {
+                sb.append('p').append(LatencyHistogram.percentileLabel(p)).append(' ').append(h.getValueAtPercentile(p)).append(" | ");
+            }
+            return sb.append("max ").append(h.getMax()).append(String.format(" | mean %.0f", h.getMean())).toString();
+        }
+    }
+
+    /**
+     * @return the stats for the connection name, made if there aren't any yet
+     */
+    public static Stats statsFor(String connectionName) {
+        return STATS.computeIfAbsent(connectionName == null ? UNNAMED : connectionName, Stats::new);
+    }
+
+    /**
+     * @return the stats for the connection name, null if no connection by that name used this data port
+     */
+    public static Stats getStats(String connectionName) {
+        return STATS.get(connectionName == null ? UNNAMED : connectionName);
+    }
+
+    private Stats stats;
+    private boolean probed;
+
+    @Override
+    public void afterConstruct(Options options) {
+        super.afterConstruct(options);
+        stats = statsFor(options.getConnectionName());
+        stats.dataPorts.incrementAndGet();
+    }
+
+    @Override
+    public int read(byte[] dst, int off, int len) throws IOException {
+        if (!probed) {
+            probe(); // the first read is the server info, right after the socket connects
+        }
+        int read = super.read(dst, off, len);
+        if (read > 0 && stats != null) {
+            stats.readBytes.record(read);
+        }
+        return read;
+    }
+
+    @Override
+    public void write(byte[] src, int toWrite) throws IOException {
+        if (stats == null) {
+            super.write(src, toWrite);
+            return;
+        }
+        if (!probed) {
+            probe();
+        }
+        long start = System.nanoTime();
+        try {
+            super.write(src, toWrite);
+        }
+        catch (IOException e) {
+            stats.failedWrites.incrementAndGet();
+            throw e;
+        }
+        long elapsed = System.nanoTime() - start;
+        stats.writeNanos.record(elapsed);
+        stats.writeBytes.record(toWrite);
+        if (elapsed > BLOCKED_WRITE_NANOS) {
+            stats.blockedWrites.incrementAndGet();
+        }
+    }
+
+    private void probe() {
+        probed = true;
+        if (stats != null && socket != null) {
+            try {
+                stats.effectiveSendBufferSize.set(socket.getSendBufferSize());
+                stats.effectiveReceiveBufferSize.set(socket.getReceiveBufferSize());
+            }
+            catch (SocketException e) {
+                Debug.log("SOCKET", "Exception Reading Socket Buffer Sizes", e);
+            }
+        }
+    }
+}
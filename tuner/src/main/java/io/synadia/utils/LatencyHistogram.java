@@ -0,0 +1,179 @@
+// Copyright (c) 2025 Synadia Communications Inc. All Rights Reserved.
+// See LICENSE and NOTICE file for details.
+
+package io.synadia.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+    Log linear histogram in the spirit of HdrHistogram. Every power of two is split into
+    128 linear sub buckets, so any recorded value is reported within 1% of what it was.
+    Recording is lock free and does not allocate. Values are usually nanoseconds,
+    anything above the highest trackable value is counted at the highest value.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HIGHEST_BIT = 40; // about 18 minutes in nanos
+
+    public static final long HIGHEST_TRACKABLE_VALUE = (1L << (HIGHEST_BIT + 1)) - 1;
+    public static final double[] STANDARD_PERCENTILES = new double[]{50, 90, 99, 99.9};
+    public static final double[] FULL_PERCENTILES = new double[]{50, 75, 90, 95, 99, 99.9, 99.99};
+
+    private final AtomicLongArray counts;
+    private final AtomicLong totalCount;
+    private final AtomicLong max;
+
+    public LatencyHistogram() {
+        counts = new AtomicLongArray(indexOf(HIGHEST_TRACKABLE_VALUE) + 1);
+        totalCount = new AtomicLong();
+        max = new AtomicLong();
+    }
+
+    public void record(long value) {
+        record(value, 1);
+    }
+
+    public void record(long value, long count) {
+        if (value < 0) {
+            value = 0;
+        }
+        else if (value > HIGHEST_TRACKABLE_VALUE) {
+            value = HIGHEST_TRACKABLE_VALUE;
+        }
+        counts.addAndGet(indexOf(value), count);
+        totalCount.addAndGet(count);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    public long getTotalCount() {
+        return totalCount.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile 0 to 100
+     * @return the highest value equivalent to the value at the percentile, 0 if nothing recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = totalCount.get();
+        if (total == 0) {
+            return 0;
+        }
+        long countAtPercentile = Math.max(1, (long)Math.ceil(Math.min(100, percentile) / 100 * total));
+        long running = 0;
+        int last = counts.length() - 1;
+        for (int ix = 0; ix <= last; ix++) {
+            running += counts.get(ix);
+            if (running >= countAtPercentile) {
+                return Math.min(highestEquivalentValue(ix), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public double getMean() {
+        long total = 0;
+        double sum = 0;
+        for (int ix = 0; ix < counts.length(); ix++) {
+            long c = counts.get(ix);
+            if (c > 0) {
+                total += c;
+                sum += (double)c * (lowestEquivalentValue(ix) + highestEquivalentValue(ix)) / 2;
+            }
+        }
+        return total == 0 ? 0 : sum / total;
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int ix = 0; ix < counts.length(); ix++) {
+            long c = other.counts.get(ix);
+            if (c != 0) {
+                counts.addAndGet(ix, c);
+            }
+        }
+        totalCount.addAndGet(other.totalCount.get());
+        long otherMax = other.max.get();
+        long current = max.get();
+        while (otherMax > current && !max.compareAndSet(current, otherMax)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Make this histogram hold the counts that are in current but not in previous.
+     * Used to turn two cumulative snapshots into an interval.
+     */
+    public void setToDifference(LatencyHistogram current, LatencyHistogram previous) {
+        long total = 0;
+        int highest = -1;
+        for (int ix = 0; ix < counts.length(); ix++) {
+            long c = current.counts.get(ix) - previous.counts.get(ix);
+            counts.set(ix, c);
+            if (c > 0) {
+                total += c;
+                highest = ix;
+            }
+        }
+        totalCount.set(total);
+        max.set(highest == -1 ? 0 : Math.min(highestEquivalentValue(highest), current.max.get()));
+    }
+
+    public void reset() {
+        for (int ix = 0; ix < counts.length(); ix++) {
+            counts.set(ix, 0);
+        }
+        totalCount.set(0);
+        max.set(0);
+    }
+
+    static int indexOf(long value) {
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        if (msb <= SUB_BUCKET_BITS) {
+            return (int)value;
+        }
+        int bucket = msb - SUB_BUCKET_BITS;
+        return (bucket + 1) * SUB_BUCKETS + (int)((value >>> bucket) - SUB_BUCKETS);
+    }
+
+    static long lowestEquivalentValue(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int bucket = index / SUB_BUCKETS - 1;
+        long top = index % SUB_BUCKETS + SUB_BUCKETS;
+        return top << bucket;
+    }
+
+    static long highestEquivalentValue(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int bucket = index / SUB_BUCKETS - 1;
+        long top = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((top + 1) << bucket) - 1;
+    }
+
+    public static String millis(long nanos) {
+        return String.format("%.3f ms", nanos / 1_000_000.0);
+    }
+
+    public String summary() {
+        StringBuilder sb = new StringBuilder();
+        for (double p : STANDARD_PERCENTILES) {
+            sb.append('p').append(percentileLabel(p)).append(' ').append(millis(getValueAtPercentile(p))).append(" | ");
+        }
+        return sb.append("max ").append(millis(getMax())).toString();
+    }
+
+    public static String percentileLabel(double p) {
+        return p == Math.rint(p) ? Long.toString((long)p) : Double.toString(p);
+    }
+}
@@ -0,0 +1,168 @@
+// Copyright (c) 2025 Synadia Communications Inc. All Rights Reserved.
+// See LICENSE and NOTICE file for details.
+
+package io.synadia.utils;
+
+import io.nats.ConsoleOutput;
+import io.nats.NatsRunnerUtils;
+import io.nats.NatsServerRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+
+/*
+    Runs a local cluster of nats-server processes on dynamic ports, so tuning programs can run unattended.
+    Requires nats-server to be on the path. Nodes can be killed and restarted during a run,
+    a restarted node comes back on the same client and cluster ports, and with JetStream, the same store.
+ */
+public class LocalCluster implements AutoCloseable {
+    static {
+        NatsServerRunner.setDefaultOutputSupplier(ConsoleOutput::new);
+        NatsServerRunner.setDefaultOutputLevel(Level.WARNING);
+    }
+
+    private static final String CLUSTER_NAME = "tuner";
+    private static final long FORM_CLUSTER_MILLIS = 1000;
+
+    private final int size;
+    private final boolean jetstream;
+    private final int[] ports;
+    private final int[] clusterPorts;
+    private final Path[] storeDirs;
+    private final NatsServerRunner[] runners;
+    private final List<FaultEvent> events;
+
+    public LocalCluster(int size, boolean jetstream) {
+        this.size = size;
+        this.jetstream = jetstream;
+        ports = new int[size];
+        clusterPorts = new int[size];
+        storeDirs = new Path[size];
+        runners = new NatsServerRunner[size];
+        events = new ArrayList<>();
+    }
+
+    public LocalCluster start() throws IOException {
+        for (int ix = 0; ix < size; ix++) {
+            ports[ix] = NatsRunnerUtils.nextPort();
+            clusterPorts[ix] = NatsRunnerUtils.nextPort();
+            if (jetstream) {
+                storeDirs[ix] = Files.createTempDirectory("tuner-js-" + ix + "-");
+            }
+        }
+        for (int ix = 0; ix < size; ix++) {
+            startNode(ix);
+        }
+        MiscUtils.sleep(FORM_CLUSTER_MILLIS); // give the routes time to connect
+        Debug.log("CLUSTER", "Started %s node(s)", size, "Urls", getUrls());
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String getUrl(int ix) {
+        return NatsRunnerUtils.getNatsLocalhostUri(ports[ix]);
+    }
+
+    public String[] getUrls() {
+        String[] urls = new String[size];
+        for (int ix = 0; ix < size; ix++) {
+            urls[ix] = getUrl(ix);
+        }
+        return urls;
+    }
+
+    public boolean isRunning(int ix) {
+        return runners[ix] != null;
+    }
+
+    public synchronized void kill(int ix) {
+        if (runners[ix] != null) {
+            runners[ix].shutdown();
+            runners[ix] = null;
+            event(ix, "Killed");
+        }
+    }
+
+    public synchronized void restart(int ix) throws IOException {
+        kill(ix);
+        startNode(ix);
+        event(ix, "Restarted");
+    }
+
+    public List<FaultEvent> getEvents() {
+        synchronized (events) {
+            return new ArrayList<>(events);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        for (int ix = 0; ix < size; ix++) {
+            if (runners[ix] != null) {
+                runners[ix].shutdown();
+                runners[ix] = null;
+            }
+            if (storeDirs[ix] != null) {
+                delete(storeDirs[ix].toFile());
+            }
+        }
+    }
+
+    private void startNode(int ix) throws IOException {
+        List<String> args = new ArrayList<>();
+        args.add("--server_name");
+        args.add("n" + ix);
+        args.add("--cluster_name");
+        args.add(CLUSTER_NAME);
+        args.add("--cluster");
+        args.add("nats://127.0.0.1:" + clusterPorts[ix]);
+        args.add("--routes");
+        args.add(routes(ix));
+        if (jetstream) {
+            args.add("-js");
+            args.add("-sd");
+            args.add(storeDirs[ix].toString());
+        }
+        runners[ix] = new NatsServerRunner(args.toArray(new String[0]), ports[ix], false);
+    }
+
+    private String routes(int self) {
+        StringBuilder sb = new StringBuilder();
+        for (int ix = 0; ix < size; ix++) {
+            if (ix != self) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append("nats://127.0.0.1:").append(clusterPorts[ix]);
+            }
+        }
+        return sb.toString();
+    }
+
+    private void event(int ix, String description) {
+        FaultEvent e = new FaultEvent("NODE-" + ix, description);
+        synchronized (events) {
+            events.add(e);
+        }
+        Debug.log(e.label, description);
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                delete(c);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        f.delete();
+    }
+}
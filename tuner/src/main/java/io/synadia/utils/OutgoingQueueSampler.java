@@ -0,0 +1,162 @@
+// Copyright (c) 2025 Synadia Communications Inc. All Rights Reserved.
+// See LICENSE and NOTICE file for details.
+
+package io.synadia.utils;
+
+import io.nats.client.Connection;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.locks.LockSupport;
+
+import static io.synadia.utils.Debug.format3;
+import static io.synadia.utils.Debug.simpleTime;
+
+/*
+    Samples a connection's outgoing queue, the pending message count and bytes, on its own thread
+    at a fixed interval, down to 1 millisecond. Every sample goes into a histogram for the occupancy
+    percentiles, and into a preallocated ring, so the most recent samples can be written as a timeline.
+    The sampling thread does not allocate. Meant for sizing maxMessagesInOutgoingQueue from
+    what the queue actually held during a run.
+ */
+public class OutgoingQueueSampler {
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    private final String label;
+    private final Connection conn;
+    private final long intervalNanos;
+    private final int capacity;
+    private final long[] times;
+    private final long[] messages;
+    private final long[] bytes;
+    private final LatencyHistogram messageHistogram;
+    private final LatencyHistogram byteHistogram;
+
+    private Thread thread;
+    private volatile boolean running;
+    private volatile long samples;
+
+    public OutgoingQueueSampler(String label, Connection conn, long intervalMillis) {
+        this(label, conn, intervalMillis, DEFAULT_CAPACITY);
+    }
+
+    public OutgoingQueueSampler(String label, Connection conn, long intervalMillis, int capacity) {
+        if (intervalMillis < 1) {
+            throw new IllegalArgumentException("Sample interval must be at least 1 millisecond");
+        }
+        this.label = label;
+        this.conn = conn;
+        this.intervalNanos = intervalMillis * 1_000_000;
+        this.capacity = capacity;
+        times = new long[capacity];
+        messages = new long[capacity];
+        bytes = new long[capacity];
+        // the histograms are used for counts here, not for nanos, they just need the same 1% precision
+        messageHistogram = new LatencyHistogram();
+        byteHistogram = new LatencyHistogram();
+    }
+
+    public OutgoingQueueSampler start() {
+        running = true;
+        thread = new Thread(this::sample, label + "-queue-sampler");
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    public void stop() throws InterruptedException {
+        running = false;
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
+    public long getSamples() {
+        return samples;
+    }
+
+    public long getMessagesAtPercentile(double percentile) {
+        return messageHistogram.getValueAtPercentile(percentile);
+    }
+
+    public long getBytesAtPercentile(double percentile) {
+        return byteHistogram.getValueAtPercentile(percentile);
+    }
+
+    public long getMaxMessages() {
+        return messageHistogram.getMax();
+    }
+
+    public long getMaxBytes() {
+        return byteHistogram.getMax();
+    }
+
+    private void sample() {
+        long next = System.nanoTime();
+        long count = 0;
+        while (running) {
+            long m = conn.outgoingPendingMessageCount();
+            long b = conn.outgoingPendingBytes();
+            int ix = (int)(count % capacity);
+            times[ix] = System.currentTimeMillis();
+            messages[ix] = m;
+            bytes[ix] = b;
+            messageHistogram.record(m);
+            byteHistogram.record(b);
+            samples = ++count; // volatile write publishes the ring entry
+
+            next += intervalNanos;
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            else if (-wait > intervalNanos) {
+                next = System.nanoTime(); // fell behind, don't try to catch up with a burst of samples
+            }
+        }
+    }
+
+    /**
+     * Print the occupancy percentiles
+     * @param limit the maxMessagesInOutgoingQueue the connection was using, or 0 if not known
+     */
+    public void report(long limit) {
+        System.out.println("Outgoing Queue Occupancy (" + format3(samples) + " samples every " + (intervalNanos / 1_000_000) + "ms)...");
+        for (double p : LatencyHistogram.STANDARD_PERCENTILES) {
+            printOccupancy("p" + LatencyHistogram.percentileLabel(p), getMessagesAtPercentile(p), getBytesAtPercentile(p), limit);
+        }
+        printOccupancy("max", getMaxMessages(), getMaxBytes(), limit);
+    }
+
+    private static void printOccupancy(String name, long m, long b, long limit) {
+        String s = "  " + String.format("%-6s", name) + ": " + format3(m) + " msgs, " + format3(b) + " bytes";
+        if (limit > 0) {
+            s += String.format(" ... %.1f%% of limit", m * 100.0 / limit);
+        }
+        System.out.println(s);
+    }
+
+    /**
+     * Write the samples still in the ring, oldest first. Call after stop.
+     */
+    public void writeCsv(PrintStream ps) {
+        ps.println("time,epoch millis,pending messages,pending bytes");
+        long count = samples;
+        for (long s = Math.max(0, count - capacity); s < count; s++) {
+            int ix = (int)(s % capacity);
+            ps.print(simpleTime(times[ix]));
+            ps.print(",");
+            ps.print(times[ix]);
+            ps.print(",");
+            ps.print(messages[ix]);
+            ps.print(",");
+            ps.println(bytes[ix]);
+        }
+    }
+
+    public void writeCsv(String fn) throws IOException {
+        try (PrintStream ps = new PrintStream(fn)) {
+            writeCsv(ps);
+        }
+    }
+}
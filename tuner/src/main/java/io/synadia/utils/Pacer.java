@@ -0,0 +1,139 @@
+// Copyright (c) 2025 Synadia Communications Inc. All Rights Reserved.
+// See LICENSE and NOTICE file for details.
+
+package io.synadia.utils;
+
+import java.util.concurrent.locks.LockSupport;
+
+/*
+    Open loop pacing. Every permit has an intended time taken from the rate profile,
+    and acquire waits for that time, independent of how long the caller took to do its work.
+    A caller that falls behind may catch up with up to burst permits back to back.
+    Anything further behind than that is skipped and counted, so one long stall
+    does not turn into an unbounded flood afterwards. The skip only moves the schedule,
+    the permit that finds the caller behind still reports, and records as lag, the time it was
+    intended for before the skip, so a stall is never hidden from latency corrected for coordinated omission.
+
+    Waiting parks until the deadline is close then spins, parking alone is not precise enough
+    for the microsecond intervals of high rates. One pacer is meant to be used by one thread.
+ */
+public class Pacer {
+    public static final long DEFAULT_SPIN_NANOS = 50_000;
+    private static final double MIN_RATE = 0.1;
+    private static final long MAX_STEP_NANOS = 1_000_000;
+
+    private final RateProfile profile;
+    private final int burst;
+    private final long spinNanos;
+    private final LatencyHistogram lag;
+
+    private long startNanos;
+    private long nextIntended;
+    private long permits;
+    private long skipped;
+
+    public Pacer(RateProfile profile, int burst) {
+        this(profile, burst, DEFAULT_SPIN_NANOS);
+    }
+
+    public Pacer(RateProfile profile, int burst, long spinNanos) {
+        this.profile = profile;
+        this.burst = Math.max(1, burst);
+        this.spinNanos = spinNanos;
+        lag = new LatencyHistogram();
+        start();
+    }
+
+    public void start() {
+        startNanos = System.nanoTime();
+        nextIntended = startNanos;
+        permits = 0;
+        skipped = 0;
+        lag.reset();
+    }
+
+    /**
+     * Wait for the next permit
+     * @return the System.nanoTime() the permit was intended for, before any skip
+     */
+    public long acquire() {
+        long intended = nextIntended;
+        long scheduled = intended; // where the schedule carries on from
+        long interval = intervalAt(intended);
+        long behind = System.nanoTime() - intended;
+        if (behind < 0) {
+            waitUntil(intended);
+        }
+        else if (behind > burst * interval) {
+            long skip = behind / interval - burst;
+            scheduled += skip * interval;
+            skipped += skip;
+        }
+        lag.record(System.nanoTime() - intended);
+        permits++;
+        nextIntended = nextAfter(scheduled);
+        return intended;
+    }
+
+    public long getPermits() {
+        return permits;
+    }
+
+    public long getSkipped() {
+        return skipped;
+    }
+
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    /**
+     * How far behind its intended time each permit was actually granted
+     */
+    public LatencyHistogram getLag() {
+        return lag;
+    }
+
+    public double achievedRate() {
+        long elapsed = System.nanoTime() - startNanos;
+        return elapsed <= 0 ? 0 : permits * 1_000_000_000.0 / elapsed;
+    }
+
+    private long intervalAt(long time) {
+        return Math.max(1, (long)(1_000_000_000.0 / rateAt(time)));
+    }
+
+    // walk forward no more than a millisecond at a time until a whole permit has accrued,
+    // otherwise a profile that starts near 0, like a ramp, would wait out the first huge interval
+    private long nextAfter(long time) {
+        double needed = 1;
+        long t = time;
+        while (true) {
+            double rate = rateAt(t);
+            double perNano = rate / 1_000_000_000.0;
+            long step = Math.min(MAX_STEP_NANOS, (long)Math.ceil(needed / perNano));
+            double accrued = perNano * step;
+            if (accrued >= needed) {
+                return t + Math.max(1, (long)(needed / perNano));
+            }
+            needed -= accrued;
+            t += step;
+        }
+    }
+
+    private double rateAt(long time) {
+        return Math.max(MIN_RATE, profile.rateAt(time - startNanos));
+    }
+
+    private void waitUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            if (remaining > spinNanos) {
+                LockSupport.parkNanos(remaining - spinNanos);
+            }
+            else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+// Copyright (c) 2025 Synadia Communications Inc. All Rights Reserved.
+// See LICENSE and NOTICE file for details.
+
+package io.synadia.utils;
+
+import io.nats.client.Connection;
+import io.nats.client.Nats;
+import io.nats.client.Options;
+import io.nats.client.impl.Headers;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    Publishes through a pool of connections instead of one, so publishing threads don't all contend
+    for one outgoing queue and one writer. Each publish goes to the connection with the fewest outgoing pending bytes,
+    or, when order matters, to the connection picked by the subject's hash, so one subject always uses one connection
+    and its messages stay in order. The least loaded scan starts at a rotating index, so when the pool is idle
+    and every connection has nothing pending, publishes are spread instead of all landing on the first connection.
+ */
+public class PooledPublisher implements AutoCloseable {
+    public enum Routing {
+        LeastLoaded,
+        SubjectHash;
+
+        public static Routing parse(String s) {
+            for (Routing r : values()) {
+                if (r.name().equalsIgnoreCase(s)) {
+                    return r;
+                }
+            }
+            throw new IllegalArgumentException("Unknown routing: " + s);
+        }
+    }
+
+    private final Connection[] connections;
+    private final LongAdder[] published;
+    private final Routing routing;
+    private final boolean owned;
+    private final AtomicInteger rotation = new AtomicInteger();
+
+    /**
+     * Connect size connections with the options, they are closed when the publisher is
+     */
+    public PooledPublisher(Options options, int size, Routing routing) throws IOException, InterruptedException {
+        if (size < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1");
+        }
+        List<Connection> list = new ArrayList<>();
+        try {
+            for (int ix = 0; ix < size; ix++) {
+                list.add(Nats.connect(options));
+            }
+        }
+        catch (IOException | InterruptedException e) {
+            for (Connection c : list) {
+                c.close();
+            }
+            throw e;
+        }
+        this.connections = list.toArray(new Connection[0]);
+        this.published = newCounters(size);
+        this.routing = routing;
+        this.owned = true;
+    }
+
+    /**
+     * Use connections made elsewhere, they are not closed when the publisher is
+     */
+    public PooledPublisher(List<Connection> connections, Routing routing) {
+        if (connections.isEmpty()) {
+            throw new IllegalArgumentException("Pool needs at least 1 connection");
+        }
+        this.connections = connections.toArray(new Connection[0]);
+        this.published = newCounters(this.connections.length);
+        this.routing = routing;
+        this.owned = false;
+    }
+
+    private static LongAdder[] newCounters(int size) {
+        LongAdder[] counters = new LongAdder[size];
+        for (int ix = 0; ix < size; ix++) {
+            counters[ix] = new LongAdder();
+        }
+        return counters;
+    }
+
+    public void publish(String subject, byte[] data) {
+        int ix = route(subject);
+        connections[ix].publish(subject, data);
+        published[ix].increment();
+    }
+
+    public void publish(String subject, Headers headers, byte[] data) {
+        int ix = route(subject);
+        connections[ix].publish(subject, headers, data);
+        published[ix].increment();
+    }
+
+    int route(String subject) {
+        int size = connections.length;
+        if (size == 1) {
+            return 0;
+        }
+        if (routing == Routing.SubjectHash) {
+            return (subject.hashCode() & 0x7FFFFFFF) % size;
+        }
+        int start = (rotation.getAndIncrement() & 0x7FFFFFFF) % size;
+        int best = start;
+        long bestBytes = Long.MAX_VALUE;
+        for (int n = 0; n < size; n++) {
+            int ix = (start + n) % size;
+            Connection c = connections[ix];
+            if (c.getStatus() != Connection.Status.CONNECTED) {
+                continue; // a reconnecting connection only buffers, don't pile onto it
+            }
+            long bytes = c.outgoingPendingBytes();
+            if (bytes == 0) {
+                return ix; // can't do better than empty
+            }
+            if (bytes < bestBytes) {
+                bestBytes = bytes;
+                best = ix;
+            }
+        }
+        return best;
+    }
+
+    public int size() {
+        return connections.length;
+    }
+
+    public Routing getRouting() {
+        return routing;
+    }
+
+    public Connection getConnection(int ix) {
+        return connections[ix];
+    }
+
+    /**
+     * @return how many messages were published through each connection
+     */
+    public long[] getPublished() {
+        long[] counts = new long[published.length];
+        for (int ix = 0; ix < published.length; ix++) {
+            counts[ix] = published[ix].sum();
+        }
+        return counts;
+    }
+
+    public void flush(Duration timeout) throws TimeoutException, InterruptedException {
+        for (Connection c : connections) {
+            c.flush(timeout);
+        }
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        if (owned) {
+            for (Connection c : connections) {
+                c.close();
+            }
+        }
+    }
+}
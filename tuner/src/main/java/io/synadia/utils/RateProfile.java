@@ -0,0 +1,48 @@
+// Copyright (c) 2025 Synadia Communications Inc. All Rights Reserved.
+// See LICENSE and NOTICE file for details.
+
+package io.synadia.utils;
+
+/*
+    The rate, in messages per second, that a Pacer should be running at a given time into the run.
+ */
+public interface RateProfile {
+    double rateAt(long elapsedNanos);
+
+    static RateProfile constant(double tps) {
+        return elapsedNanos -> tps;
+    }
+
+    /**
+     * Climb linearly from one rate to another, then hold the final rate
+     */
+    static RateProfile ramp(double fromTps, double toTps, long rampNanos) {
+        return elapsedNanos -> elapsedNanos >= rampNanos
+            ? toTps
+            : fromTps + (toTps - fromTps) * elapsedNanos / rampNanos;
+    }
+
+    /**
+     * Start at the base rate and add the step rate every step period
+     */
+    static RateProfile step(double baseTps, double stepTps, long stepNanos) {
+        return elapsedNanos -> baseTps + stepTps * (elapsedNanos / stepNanos);
+    }
+
+    /**
+     * Oscillate around the mean rate
+     */
+    static RateProfile sine(double meanTps, double amplitudeTps, long periodNanos) {
+        return elapsedNanos -> meanTps + amplitudeTps * Math.sin(2 * Math.PI * elapsedNanos / periodNanos);
+    }
+
+    static RateProfile of(String name, double tps, double deltaTps, long periodNanos) {
+        switch (name.trim().toLowerCase()) {
+            case "constant": return constant(tps);
+            case "ramp": return ramp(Math.max(0, tps - deltaTps), tps, periodNanos);
+            case "step": return step(tps, deltaTps, periodNanos);
+            case "sine": return sine(tps, deltaTps, periodNanos);
+        }
+        throw new IllegalArgumentException("Invalid rate profile: " + name);
+    }
+}
@@ -0,0 +1,99 @@
+// Copyright (c) 2025 Synadia Communications Inc. All Rights Reserved.
+// See LICENSE and NOTICE file for details.
+
+package io.synadia.utils;
+
+/*
+    A first in first out ring of when each message was buffered and how many bytes it was,
+    matched against the bytes of each socket write, so every message gets its own time
+    from being buffered to being written, not the time since the last message was buffered.
+    The ring is primitive arrays and only allocates when it has to grow.
+    Not thread safe, the client's writer thread both buffers and writes, so it is the only user.
+ */
+public class ResidencyFifo {
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private long[] times;
+    private long[] sizes;
+    private int head;
+    private int count;
+    private long headWritten; // bytes of the head message already written, a write can end part way through one
+    private long unmatchedBytes;
+
+    public ResidencyFifo() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ResidencyFifo(int capacity) {
+        times = new long[capacity];
+        sizes = new long[capacity];
+    }
+
+    public void buffered(long nanos, long bytes) {
+        if (count == times.length) {
+            grow();
+        }
+        int ix = (head + count) % times.length;
+        times[ix] = nanos;
+        sizes[ix] = bytes;
+        count++;
+    }
+
+    /**
+     * Match written bytes against the oldest buffered messages, recording the residency of every message completed
+     * @param bytes the bytes written
+     * @param nowNanos when they were written
+     * @param residency where to record each completed message's residency
+     * @return the longest residency completed by this write, -1 if the write completed no message
+     */
+    public long written(long bytes, long nowNanos, LatencyHistogram residency) {
+        long longest = -1;
+        while (bytes > 0 && count > 0) {
+            long remaining = sizes[head] - headWritten;
+            if (bytes < remaining) {
+                headWritten += bytes;
+                return longest;
+            }
+            bytes -= remaining;
+            long nanos = nowNanos - times[head];
+            residency.record(nanos);
+            longest = Math.max(longest, nanos);
+            head = (head + 1) % times.length;
+            count--;
+            headWritten = 0;
+        }
+        // bytes the client wrote that were never counted as buffered, for instance protocol pings
+        unmatchedBytes += bytes;
+        return longest;
+    }
+
+    /**
+     * Forget everything buffered, for instance when the connection drops and the buffer is thrown away
+     */
+    public void clear() {
+        head = 0;
+        count = 0;
+        headWritten = 0;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public long getUnmatchedBytes() {
+        return unmatchedBytes;
+    }
+
+    private void grow() {
+        long[] newTimes = new long[times.length * 2];
+        long[] newSizes = new long[sizes.length * 2];
+        for (int ix = 0; ix < count; ix++) {
+            int from = (head + ix) % times.length;
+            newTimes[ix] = times[from];
+            newSizes[ix] = sizes[from];
+        }
+        times = newTimes;
+        sizes = newSizes;
+        head = 0;
+    }
+}
@@ -0,0 +1,236 @@
+// Copyright (c) 2025 Synadia Communications Inc. All Rights Reserved.
+// See LICENSE and NOTICE file for details.
+
+package io.synadia.utils;
+
+import io.nats.client.Nats;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/*
+    An append only file of tuning run results. Each record has the tool that made it, the time,
+    the run's parameters, the environment (java, jnats version, cpus, os) and the run's numeric metrics.
+    Records are framed as magic, length, payload, crc, so a record torn by a crash is skipped on read,
+    and appends take a file lock, so runs in separate processes can share one store. A file lock is held by the
+    whole process, so appends also take a lock shared by the JVM first, for runs on separate threads.
+    A record's id is the ordinal of its frame in the file, counting frames that are skipped,
+    so a damaged record or one from a newer version never renumbers the records after it.
+ */
+public class ResultStore {
+    public static final String DEFAULT_FILE = "tuner-results.bin";
+
+    private static final int MAGIC = 0x54524553; // TRES
+    private static final byte VERSION = 1;
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+    private static final Object APPEND_LOCK = new Object();
+
+    public static class Record {
+        public int id; // the ordinal of the record's frame in the store, set on read
+        public final long time;
+        public final String tool;
+        public final Map<String, String> params;
+        public final Map<String, String> env;
+        public final Map<String, Double> metrics;
+
+        public Record(String tool) {
+            this(tool, System.currentTimeMillis(), new LinkedHashMap<>(), environment(), new LinkedHashMap<>());
+        }
+
+        private Record(String tool, long time, Map<String, String> params, Map<String, String> env, Map<String, Double> metrics) {
+            this.tool = tool;
+            this.time = time;
+            this.params = params;
+            this.env = env;
+            this.metrics = metrics;
+        }
+
+        public Record param(String key, Object value) {
+            params.put(key, String.valueOf(value));
+            return this;
+        }
+
+        public Record metric(String key, double value) {
+            metrics.put(key, value);
+            return this;
+        }
+    }
+
+    private final File file;
+
+    public ResultStore(String path) {
+        file = new File(path);
+    }
+
+    public String getPath() {
+        return file.getPath();
+    }
+
+    public void append(Record r) throws IOException {
+        byte[] payload = encode(r);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer frame = ByteBuffer.allocate(payload.length + 12);
+        frame.putInt(MAGIC).putInt(payload.length).put(payload).putInt((int)crc.getValue());
+        frame.flip();
+        synchronized (APPEND_LOCK) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                 FileChannel channel = raf.getChannel();
+                 FileLock ignored = channel.lock())
+            {
+                channel.position(channel.size());
+                while (frame.hasRemaining()) {
+                    channel.write(frame);
+                }
+            }
+        }
+    }
+
+    /**
+     * Append, reporting instead of throwing, so a problem with the store doesn't lose the run's console report
+     */
+    public void appendQuietly(Record r) {
+        try {
+            append(r);
+            Debug.log("STORE", "Result %s appended to %s", r.tool, file.getPath());
+        }
+        catch (IOException | OverlappingFileLockException e) {
+            Debug.log("STORE", "Failed appending result to %s", file.getPath(), e);
+        }
+    }
+
+    public List<Record> readAll() throws IOException {
+        List<Record> records = new ArrayList<>();
+        if (!file.exists()) {
+            return records;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int ordinal = 0;
+            while (true) {
+                int magic;
+                try {
+                    magic = in.readInt();
+                }
+                catch (EOFException e) {
+                    break;
+                }
+                if (magic != MAGIC) {
+                    break; // not a record boundary, nothing after this can be trusted
+                }
+                try {
+                    int length = in.readInt();
+                    if (length < 0 || length > MAX_RECORD_SIZE) {
+                        break; // a damaged length, nothing after this can be trusted
+                    }
+                    byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    int expected = in.readInt();
+                    ordinal++;
+                    CRC32 crc = new CRC32();
+                    crc.update(payload);
+                    if ((int)crc.getValue() != expected) {
+                        continue; // torn or damaged, skip it, but it keeps its id
+                    }
+                    Record r;
+                    try {
+                        r = decode(payload);
+                    }
+                    catch (IOException e) {
+                        continue; // the frame is whole but its record isn't readable, skip it
+                    }
+                    if (r != null) {
+                        r.id = ordinal;
+                        records.add(r);
+                    }
+                }
+                catch (EOFException e) {
+                    break; // torn last record
+                }
+            }
+        }
+        return records;
+    }
+
+    public static Map<String, String> environment() {
+        Map<String, String> env = new LinkedHashMap<>();
+        env.put("java.version", System.getProperty("java.version"));
+        env.put("java.vm", System.getProperty("java.vm.name"));
+        env.put("jnats.version", Nats.CLIENT_VERSION);
+        env.put("cpus", Integer.toString(Runtime.getRuntime().availableProcessors()));
+        env.put("max.memory", Long.toString(Runtime.getRuntime().maxMemory()));
+        env.put("os", System.getProperty("os.name") + " " + System.getProperty("os.version") + " " + System.getProperty("os.arch"));
+        return env;
+    }
+
+    private static byte[] encode(Record r) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeByte(VERSION);
+        out.writeLong(r.time);
+        out.writeUTF(r.tool);
+        writeStrings(out, r.params);
+        writeStrings(out, r.env);
+        out.writeShort(r.metrics.size());
+        for (Map.Entry<String, Double> e : r.metrics.entrySet()) {
+            out.writeUTF(e.getKey());
+            out.writeDouble(e.getValue());
+        }
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    /**
+     * @return the record, null if it is a version this code doesn't know
+     */
+    private static Record decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte version = in.readByte();
+        if (version != VERSION) {
+            return null;
+        }
+        long time = in.readLong();
+        String tool = in.readUTF();
+        Map<String, String> params = readStrings(in);
+        Map<String, String> env = readStrings(in);
+        Map<String, Double> metrics = new LinkedHashMap<>();
+        int count = in.readUnsignedShort();
+        for (int ix = 0; ix < count; ix++) {
+            metrics.put(in.readUTF(), in.readDouble());
+        }
+        return new Record(tool, time, params, env, metrics);
+    }
+
+    private static void writeStrings(DataOutputStream out, Map<String, String> map) throws IOException {
+        out.writeShort(map.size());
+        for (Map.Entry<String, String> e : map.entrySet()) {
+            out.writeUTF(e.getKey());
+            out.writeUTF(e.getValue() == null ? "" : e.getValue());
+        }
+    }
+
+    private static Map<String, String> readStrings(DataInputStream in) throws IOException {
+        Map<String, String> map = new LinkedHashMap<>();
+        int count = in.readUnsignedShort();
+        for (int ix = 0; ix < count; ix++) {
+            map.put(in.readUTF(), in.readUTF());
+        }
+        return map;
+    }
+}
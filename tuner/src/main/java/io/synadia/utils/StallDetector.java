@@ -0,0 +1,308 @@
+// Copyright (c) 2025 Synadia Communications Inc. All Rights Reserved.
+// See LICENSE and NOTICE file for details.
+
+package io.synadia.utils;
+
+import io.nats.client.Connection;
+import io.nats.client.ConnectionListener;
+import io.nats.client.StatisticsCollector;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.nats.client.ForceReconnectOptions.FORCE_CLOSE_INSTANCE;
+import static io.synadia.utils.Debug.simpleTime;
+
+/*
+    A statistics collector that acts on sustained writer stalls, not on one slow write.
+    Every write's latency, the wait of the oldest message in it, goes into an exponentially weighted moving average.
+    The detector fires when the average has been above the high mark for the sustain time, then does not fire again
+    until the average has dropped below the low mark (hysteresis) and the cooldown has passed, so an ordinary
+    gc pause or one slow write never fires it, and a stall that lasts doesn't fire it over and over.
+    A single write longer than the hard limit, if there is one, fires it straight away, still subject to the cooldown.
+
+    What it does when it fires is a StallAction, run on the connection's connect executor, never on the writer thread.
+    forceReconnect(), log() and shed() are provided, shed() makes isShedding() true until the stall clears,
+    for publishers that can drop or defer work.
+
+    Use it as the connection's statistics collector and call setConnection once connected,
+    or, from another collector, call writeLatency with each write's latency. Everything is passed on
+    to a wrapped collector, the client's own statistics unless another is given, so they keep working.
+    What was buffered when the connection drops is never written, so it is discarded when the client counts
+    a reconnect, and also on a disconnect when the detector is the connection listener too,
+    otherwise every write after the reconnect would be matched against stale buffer times.
+ */
+public class StallDetector extends DelegatingStatistics implements ConnectionListener {
+    public static final double DEFAULT_ALPHA = 0.1;
+
+    public enum Reason {
+        Sustained,
+        HardLimit
+    }
+
+    public interface StallAction {
+        void stalled(Connection conn, Event event);
+    }
+
+    public static class Event {
+        public final Reason reason;
+        public final long time;
+        public final long writeNanos;
+        public final double ewmaNanos;
+        public final long stalledNanos;
+        public final long pendingMessages;
+
+        Event(Reason reason, long writeNanos, double ewmaNanos, long stalledNanos, long pendingMessages) {
+            this.reason = reason;
+            this.time = System.currentTimeMillis();
+            this.writeNanos = writeNanos;
+            this.ewmaNanos = ewmaNanos;
+            this.stalledNanos = stalledNanos;
+            this.pendingMessages = pendingMessages;
+        }
+
+        @Override
+        public String toString() {
+            return reason + " @ " + simpleTime(time)
+                + " | write " + LatencyHistogram.millis(writeNanos)
+                + " | ewma " + LatencyHistogram.millis((long)ewmaNanos)
+                + " | above high for " + LatencyHistogram.millis(stalledNanos)
+                + " | pending " + pendingMessages + " msgs";
+        }
+    }
+
+    public static StallAction forceReconnect() {
+        return (conn, event) -> {
+            try {
+                conn.forceReconnect(FORCE_CLOSE_INSTANCE);
+            }
+            catch (IOException | InterruptedException e) {
+                Debug.log("STALL", "Force Reconnect Failed", e);
+            }
+        };
+    }
+
+    public static StallAction log() {
+        return (conn, event) -> Debug.log("STALL", "Writer Stalled", event);
+    }
+
+    public static StallAction shed() {
+        return (conn, event) -> {}; // isShedding() is true while stalled, the publisher checks it
+    }
+
+    private final String label;
+    private final long highNanos;
+    private final long lowNanos;
+    private final long sustainNanos;
+    private final long cooldownNanos;
+    private final long hardLimitNanos;
+    private final double alpha;
+    private final StallAction action;
+
+    // only the writer thread updates these
+    private final ResidencyFifo fifo = new ResidencyFifo();
+    private final LatencyHistogram residency = new LatencyHistogram();
+    private volatile double ewmaNanos; // read by other threads, for instance a publisher backing off
+    private boolean suppressing; // a fire has been held back by the cooldown during this stall
+    private long aboveHighSince = -1;
+    private long lastFiredNanos;
+    private boolean armed = true;
+
+    private volatile Connection connection;
+    private volatile boolean discard;
+    private volatile boolean stalled;
+    private final AtomicLong sustainedFires = new AtomicLong();
+    private final AtomicLong hardLimitFires = new AtomicLong();
+    private final AtomicLong suppressedByCooldown = new AtomicLong();
+    private final List<Event> events = new ArrayList<>();
+
+    /**
+     * @param label for the log
+     * @param highMillis the average has to be over this to be a stall
+     * @param lowMillis the average has to be back under this for the stall to be over, less than 0 for half of high
+     * @param sustainMillis how long the average has to stay over high to fire
+     * @param cooldownMillis the least time between fires
+     * @param hardLimitMillis a single write this long fires, 0 for no hard limit
+     * @param alpha the weight of each write in the average, 0 to 1
+     * @param action what to do when it fires
+     */
+    public StallDetector(String label, long highMillis, long lowMillis, long sustainMillis, long cooldownMillis,
+                         long hardLimitMillis, double alpha, StallAction action) {
+        this(label, highMillis, lowMillis, sustainMillis, cooldownMillis, hardLimitMillis, alpha, action, null);
+    }
+
+    /**
+     * @param delegate the collector everything is passed on to, null for the client's own statistics
+     */
+    public StallDetector(String label, long highMillis, long lowMillis, long sustainMillis, long cooldownMillis,
+                         long hardLimitMillis, double alpha, StallAction action, StatisticsCollector delegate) {
+        super(delegate);
+        if (lowMillis > highMillis) {
+            throw new IllegalArgumentException("The low mark cannot be above the high mark");
+        }
+        if (alpha <= 0 || alpha > 1) {
+            throw new IllegalArgumentException("Alpha must be more than 0 and at most 1");
+        }
+        this.label = label;
+        this.highNanos = highMillis * 1_000_000;
+        this.lowNanos = lowMillis < 0 ? highNanos / 2 : lowMillis * 1_000_000;
+        this.sustainNanos = sustainMillis * 1_000_000;
+        this.cooldownNanos = cooldownMillis * 1_000_000;
+        this.hardLimitNanos = hardLimitMillis * 1_000_000;
+        this.alpha = alpha;
+        this.action = action;
+        lastFiredNanos = System.nanoTime() - cooldownNanos;
+    }
+
+    public void setConnection(Connection connection) {
+        this.connection = connection;
+    }
+
+    @Override
+    public void connectionEvent(Connection conn, Events type) {
+        if (type == Events.DISCONNECTED) {
+            discardPending();
+        }
+    }
+
+    @Override
+    public void incrementReconnects() {
+        super.incrementReconnects();
+        discardPending();
+    }
+
+    @Override
+    public void incrementOutBytes(long bytes) {
+        super.incrementOutBytes(bytes);
+        discardIfDisconnected();
+        fifo.buffered(System.nanoTime(), bytes);
+    }
+
+    @Override
+    public void registerWrite(long bytes) {
+        super.registerWrite(bytes);
+        discardIfDisconnected();
+        long now = System.nanoTime();
+        long nanos = fifo.written(bytes, now, residency);
+        if (nanos >= 0) {
+            writeLatency(nanos, now);
+        }
+    }
+
+    /**
+     * Forget what was buffered, since it will never be written. Safe from any thread,
+     * the writer thread does the clearing on its next buffer or write.
+     */
+    public void discardPending() {
+        discard = true;
+    }
+
+    private void discardIfDisconnected() {
+        if (discard) {
+            discard = false;
+            fifo.clear();
+        }
+    }
+
+    public void writeLatency(long nanos) {
+        writeLatency(nanos, System.nanoTime());
+    }
+
+    private void writeLatency(long nanos, long now) {
+        ewmaNanos = ewmaNanos == 0 ? nanos : alpha * nanos + (1 - alpha) * ewmaNanos;
+
+        if (hardLimitNanos > 0 && nanos >= hardLimitNanos) {
+            fire(Reason.HardLimit, nanos, now, 0);
+        }
+
+        if (ewmaNanos > highNanos) {
+            if (aboveHighSince < 0) {
+                aboveHighSince = now;
+            }
+            long above = now - aboveHighSince;
+            // not again until the average is back under low, unless the cooldown held this fire back
+            if (armed && above >= sustainNanos && fire(Reason.Sustained, nanos, now, above)) {
+                armed = false;
+            }
+        }
+        else {
+            aboveHighSince = -1;
+            if (ewmaNanos < lowNanos) {
+                armed = true;
+                suppressing = false;
+                stalled = false;
+            }
+        }
+    }
+
+    /**
+     * @return true if it fired, false if the cooldown held it back
+     */
+    private boolean fire(Reason reason, long nanos, long now, long above) {
+        if (now - lastFiredNanos < cooldownNanos) {
+            // every write of the stall tries to fire, count the stall once, not every write
+            if (!suppressing) {
+                suppressing = true;
+                suppressedByCooldown.incrementAndGet();
+            }
+            return false;
+        }
+        lastFiredNanos = now;
+        suppressing = false;
+        stalled = true;
+        Connection conn = connection;
+        Event event = new Event(reason, nanos, ewmaNanos, above, conn == null ? -1 : conn.outgoingPendingMessageCount());
+        synchronized (events) {
+            events.add(event);
+        }
+        (reason == Reason.Sustained ? sustainedFires : hardLimitFires).incrementAndGet();
+        Debug.log(label, "Stall Detected", event);
+        if (conn != null) {
+            // never act on the writer thread, a forced reconnect waits for the writer to stop
+            Executor executor = conn.getOptions().getConnectExecutor();
+            executor.execute(() -> action.stalled(conn, event));
+        }
+        return true;
+    }
+
+    /**
+     * @return true from a fire until the average drops back under the low mark
+     */
+    public boolean isShedding() {
+        return stalled;
+    }
+
+    public double getEwmaNanos() {
+        return ewmaNanos;
+    }
+
+    public long getFires() {
+        return sustainedFires.get() + hardLimitFires.get();
+    }
+
+    public LatencyHistogram getResidency() {
+        return residency;
+    }
+
+    public List<Event> getEvents() {
+        synchronized (events) {
+            return new ArrayList<>(events);
+        }
+    }
+
+    public void report() {
+        System.out.println("Stall Detector...");
+        System.out.println(String.format("  High / Low / Sustain / Cooldown: %s / %s / %s / %s",
+            LatencyHistogram.millis(highNanos), LatencyHistogram.millis(lowNanos),
+            LatencyHistogram.millis(sustainNanos), LatencyHistogram.millis(cooldownNanos)));
+        System.out.println("  Sustained Fires:                 " + sustainedFires.get());
+        System.out.println("  Hard Limit Fires:                " + hardLimitFires.get());
+        System.out.println("  Suppressed By Cooldown:          " + suppressedByCooldown.get());
+        for (Event e : getEvents()) {
+            System.out.println("  " + e);
+        }
+    }
+}
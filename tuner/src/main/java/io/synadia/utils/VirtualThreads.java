@@ -0,0 +1,53 @@
+// Copyright (c) 2025 Synadia Communications Inc. All Rights Reserved.
+// See LICENSE and NOTICE file for details.
+
+package io.synadia.utils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Virtual threads when the runtime has them (Java 21+), platform threads otherwise.
+    The project still builds for older Java, so the virtual thread builder is found by reflection.
+ */
+public abstract class VirtualThreads {
+    private static final ThreadFactory VIRTUAL_FACTORY = findVirtualFactory();
+
+    private VirtualThreads() {}  /* ensures cannot be constructed */
+
+    public static boolean isAvailable() {
+        return VIRTUAL_FACTORY != null;
+    }
+
+    /**
+     * @param prefix the name prefix for the threads, followed by a counter
+     * @return a factory of virtual threads if available, otherwise of daemon platform threads
+     */
+    public static ThreadFactory factory(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        if (VIRTUAL_FACTORY == null) {
+            return r -> {
+                Thread t = new Thread(r, prefix + "-" + counter.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            };
+        }
+        return r -> {
+            Thread t = VIRTUAL_FACTORY.newThread(r);
+            t.setName(prefix + "-" + counter.getAndIncrement());
+            return t;
+        };
+    }
+
+    private static ThreadFactory findVirtualFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory)factory.invoke(builder);
+        }
+        catch (Exception e) {
+            return null;
+        }
+    }
+}
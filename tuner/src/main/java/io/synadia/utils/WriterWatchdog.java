@@ -0,0 +1,175 @@
+// Copyright (c) 2025 Synadia Communications Inc. All Rights Reserved.
+// See LICENSE and NOTICE file for details.
+
+package io.synadia.utils;
+
+import io.nats.client.Connection;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static io.nats.client.ForceReconnectOptions.FORCE_CLOSE_INSTANCE;
+import static io.synadia.utils.Debug.simpleTime;
+
+/*
+    Watches for the connection's writer stopping, without waiting for the writer to say so.
+    The statistics collector calls written() from registerWrite, which moves a last write stamp forward.
+    A daemon thread polls the stamp and the outgoing pending bytes, and if bytes are pending
+    and the stamp has not moved for the stall time, the writer is stuck, most likely in a socket write
+    that won't finish until the socket write timeout. The stall is raised once, with the outgoing queue depth,
+    within a poll interval of the stall time, and a recovery is raised when the writer moves again.
+    With nothing pending the writer has nothing to do, so an idle connection is never a stall.
+ */
+public class WriterWatchdog {
+    public interface Listener {
+        void stalled(Connection conn, Stall stall);
+
+        default void recovered(Connection conn, Stall stall) {}
+    }
+
+    public static class Stall {
+        public final long time;
+        public final long sinceWriteNanos;
+        public final long pendingMessages;
+        public final long pendingBytes;
+        public volatile long stalledNanos = -1; // set when it recovers
+
+        Stall(long sinceWriteNanos, long pendingMessages, long pendingBytes) {
+            this.time = System.currentTimeMillis();
+            this.sinceWriteNanos = sinceWriteNanos;
+            this.pendingMessages = pendingMessages;
+            this.pendingBytes = pendingBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "Writer Stopped @ " + simpleTime(time)
+                + " | last write " + LatencyHistogram.millis(sinceWriteNanos) + " ago"
+                + " | pending " + pendingMessages + " msgs, " + pendingBytes + " bytes"
+                + (stalledNanos < 0 ? " | not recovered" : " | recovered after " + LatencyHistogram.millis(stalledNanos));
+        }
+    }
+
+    public static Listener log(String label) {
+        return (conn, stall) -> Debug.log(label, "Writer Stalled", stall);
+    }
+
+    public static Listener forceReconnect(String label) {
+        return (conn, stall) -> {
+            Debug.log(label, "Writer Stalled, Forcing Reconnect", stall);
+            // not on the watchdog thread, it has to keep watching
+            conn.getOptions().getConnectExecutor().execute(() -> {
+                try {
+                    conn.forceReconnect(FORCE_CLOSE_INSTANCE);
+                }
+                catch (IOException | InterruptedException e) {
+                    Debug.log(label, "Force Reconnect Failed", e);
+                }
+            });
+        };
+    }
+
+    private final String label;
+    private final long stallNanos;
+    private final long pollNanos;
+    private final Listener listener;
+    private final AtomicLong lastWrite;
+    private final List<Stall> stalls;
+
+    private volatile Connection conn;
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     * @param label for the thread name
+     * @param stallMillis how long the writer can go without writing while bytes are pending
+     * @param listener told about stalls and recoveries
+     */
+    public WriterWatchdog(String label, long stallMillis, Listener listener) {
+        if (stallMillis < 1) {
+            throw new IllegalArgumentException("Stall millis must be at least 1");
+        }
+        this.label = label;
+        this.stallNanos = stallMillis * 1_000_000;
+        // poll often enough to raise the stall within a quarter of the stall time
+        this.pollNanos = Math.max(1_000_000, stallNanos / 4);
+        this.listener = listener;
+        lastWrite = new AtomicLong(System.nanoTime());
+        stalls = new ArrayList<>();
+    }
+
+    /**
+     * Called by the statistics collector from registerWrite
+     */
+    public void written() {
+        lastWrite.lazySet(System.nanoTime());
+    }
+
+    public WriterWatchdog start(Connection conn) {
+        this.conn = conn;
+        lastWrite.set(System.nanoTime());
+        running = true;
+        thread = new Thread(this::watch, label + "-writer-watchdog");
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    public void stop() throws InterruptedException {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread.join();
+        }
+    }
+
+    private void watch() {
+        Stall current = null;
+        long stalledWrite = 0;
+        while (running) {
+            LockSupport.parkNanos(pollNanos);
+            long now = System.nanoTime();
+            long last = lastWrite.get();
+            if (current != null) {
+                if (last != stalledWrite) {
+                    current.stalledNanos = last - stalledWrite;
+                    listener.recovered(conn, current);
+                    current = null;
+                }
+                continue;
+            }
+            long pendingBytes = conn.outgoingPendingBytes();
+            if (pendingBytes == 0) {
+                // nothing to write, the writer is idle, not stuck
+                lastWrite.compareAndSet(last, now);
+                continue;
+            }
+            if (now - last >= stallNanos) {
+                current = new Stall(now - last, conn.outgoingPendingMessageCount(), pendingBytes);
+                stalledWrite = last;
+                synchronized (stalls) {
+                    stalls.add(current);
+                }
+                listener.stalled(conn, current);
+            }
+        }
+    }
+
+    public List<Stall> getStalls() {
+        synchronized (stalls) {
+            return new ArrayList<>(stalls);
+        }
+    }
+
+    public void report() {
+        List<Stall> list = getStalls();
+        System.out.println("Writer Watchdog (" + LatencyHistogram.millis(stallNanos) + ")...");
+        System.out.println("  Stalls: " + list.size());
+        for (Stall s : list) {
+            System.out.println("  " + s);
+        }
+    }
+}